@@ -0,0 +1,161 @@
+package bench;
+
+import replica.Compression;
+import replica.Mutation;
+import replica.ReplicationCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cost of the replication payloads under Java serialization (what RMI sends
+ * for pushFullState and applyDeltas) versus ReplicationCodec (what
+ * pushEncodedState and applyEncodedDeltas send), plain and deflated.
+ *
+ * Usage:
+ *   mvn -Dexec.mainClass=bench.CodecBenchmark -Dexec.args="[batch] [state keys] [iterations]" exec:java
+ *
+ * Reports payload size, encode and decode time and bytes allocated per
+ * message, for one mutation batch and one full state, single-threaded.
+ */
+public class CodecBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Codec {
+        byte[] encode() throws Exception;
+        Object decode(byte[] bytes) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int batch = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int stateKeys = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        ArrayList<Mutation> mutations = new ArrayList<>(batch);
+        long seq = 1_000_000;
+        for (int i = 0; i < batch; i++) {
+            mutations.add(new Mutation(seq++, String.format("user:%08d", rnd.nextInt(100_000_000)), jsonValue(i)));
+        }
+        HashMap<String,String> state = new HashMap<>();
+        for (int i = 0; i < stateKeys; i++) {
+            state.put(String.format("user:%08d", rnd.nextInt(100_000_000)), jsonValue(i));
+        }
+        // a full state costs far more per message; keep its run time comparable
+        int stateIterations = Math.max(3, (int) ((long) iterations * batch / Math.max(1, state.size())));
+
+        System.out.printf("Replication payloads: %d-mutation batch (%d runs), %d-key state (%d runs)%n",
+                batch, iterations, state.size(), stateIterations);
+        System.out.printf("%-20s %12s %12s %12s %14s %14s%n",
+                "payload", "bytes", "encode us", "decode us", "enc alloc B", "dec alloc B");
+
+        // Run each twice and report the second pass, after the JIT has warmed up.
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1;
+            run("batch/java", iterations, report, new Codec() {
+                public byte[] encode() throws IOException { return serialize(mutations); }
+                public Object decode(byte[] bytes) throws Exception { return deserialize(bytes); }
+            });
+            run("batch/codec", iterations, report, new Codec() {
+                public byte[] encode() { return ReplicationCodec.encodeMutations(mutations); }
+                public Object decode(byte[] bytes) { return ReplicationCodec.decodeMutations(bytes); }
+            });
+            run("batch/deflate", iterations, report, new Codec() {
+                public byte[] encode() {
+                    return ReplicationCodec.compress(ReplicationCodec.encodeMutations(mutations), Compression.DEFLATE);
+                }
+                public Object decode(byte[] bytes) { return ReplicationCodec.decodeMutations(bytes); }
+            });
+            run("state/java", stateIterations, report, new Codec() {
+                public byte[] encode() throws IOException { return serialize(state); }
+                public Object decode(byte[] bytes) throws Exception { return deserialize(bytes); }
+            });
+            run("state/codec", stateIterations, report, new Codec() {
+                public byte[] encode() { return ReplicationCodec.encodeState(state, 1_000_000); }
+                public Object decode(byte[] bytes) { return ReplicationCodec.decodeState(bytes); }
+            });
+            run("state/deflate", stateIterations, report, new Codec() {
+                public byte[] encode() {
+                    return ReplicationCodec.compress(ReplicationCodec.encodeState(state, 1_000_000), Compression.DEFLATE);
+                }
+                public Object decode(byte[] bytes) { return ReplicationCodec.decodeState(bytes); }
+            });
+        }
+
+        // sanity: the codec round-trips both payloads, compressed or not
+        List<Mutation> decoded = ReplicationCodec.decodeMutations(
+                ReplicationCodec.compress(ReplicationCodec.encodeMutations(mutations), Compression.DEFLATE));
+        Map<String,String> decodedState = ReplicationCodec.decodeState(
+                ReplicationCodec.compress(ReplicationCodec.encodeState(state, 7), Compression.DEFLATE)).entries;
+        if (!decoded.equals(mutations) || !decodedState.equals(state)) {
+            throw new IllegalStateException("codec round trip changed the payload");
+        }
+    }
+
+    private static void run(String name, int iterations, boolean report, Codec codec) throws Exception {
+        long tid = Thread.currentThread().getId();
+        long sink = 0;
+
+        byte[] bytes = null;
+        long alloc0 = THREADS.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bytes = codec.encode();
+            sink += bytes.length;
+        }
+        long encodeNanos = System.nanoTime() - t0;
+        long encodeAlloc = THREADS.getThreadAllocatedBytes(tid) - alloc0;
+
+        alloc0 = THREADS.getThreadAllocatedBytes(tid);
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += codec.decode(bytes).hashCode() & 1;
+        }
+        long decodeNanos = System.nanoTime() - t0;
+        long decodeAlloc = THREADS.getThreadAllocatedBytes(tid) - alloc0;
+
+        if (report) {
+            System.out.printf("%-20s %12d %12.1f %12.1f %14d %14d%n",
+                    name,
+                    bytes.length,
+                    encodeNanos / 1e3 / iterations,
+                    decodeNanos / 1e3 / iterations,
+                    encodeAlloc / iterations,
+                    decodeAlloc / iterations);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    // shaped like the JSON documents clients store
+    private static String jsonValue(int i) {
+        return "{\"id\":" + i + ",\"name\":\"user-" + i + "\",\"active\":" + (i % 3 != 0)
+                + ",\"tags\":[\"a\",\"b\"],\"score\":" + (i * 7 % 1000) + "}";
+    }
+
+    private static byte[] serialize(Object payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(payload);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package bench;
+
+import replica.VersionedStore;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * GET latency under a concurrent PUT storm, comparing the old replica read
+ * path (HashMap behind the replica monitor, held across replication) with
+ * the VersionedStore read path (lock-free reads of the last published epoch).
+ *
+ * Usage:
+ *   mvn -Dexec.mainClass=bench.GetLatencyBenchmark \
+ *       -Dexec.args="[seconds] [replicationMicros] [putsPerSecond] [writers] [readers]" exec:java
+ *
+ * Replication is modelled as a fixed park of replicationMicros per PUT.
+ * Writers are paced to putsPerSecond in total so both modes see the same
+ * PUT storm; readers pause briefly between GETs so they cannot starve
+ * writers of the monitor.
+ */
+public class GetLatencyBenchmark {
+
+    private static final int KEYS = 200_000;
+    private static final int MAX_SAMPLES_PER_READER = 5_000_000;
+    private static final long READ_PAUSE_NANOS = 20_000;
+
+    interface Mode {
+        void put(String key, String value, long replicationNanos);
+        String get(String key);
+    }
+
+    /** Baseline: every operation synchronized on one monitor, replication inside it. */
+    static final class MonitorMode implements Mode {
+        private final Map<String,String> store = new HashMap<>();
+
+        @Override
+        public synchronized void put(String key, String value, long replicationNanos) {
+            store.put(key, value);
+            LockSupport.parkNanos(replicationNanos);
+        }
+
+        @Override
+        public synchronized String get(String key) {
+            return store.get(key);
+        }
+    }
+
+    /** Current: apply and publish under the apply lock, replicate outside it, read lock-free. */
+    static final class VersionedMode implements Mode {
+        private final VersionedStore store = new VersionedStore();
+        private final Object applyLock = new Object();
+
+        @Override
+        public void put(String key, String value, long replicationNanos) {
+            synchronized (applyLock) {
+                store.put(key, value);
+                store.publish();
+            }
+            LockSupport.parkNanos(replicationNanos);
+        }
+
+        @Override
+        public String get(String key) {
+            return store.get(key);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long replicationNanos = (args.length > 1 ? Long.parseLong(args[1]) : 200) * 1000;
+        int putsPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int writers = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int readers = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        System.out.printf("GET latency, %d keys, %d writers at %d PUT/s, %d readers, %d us replication, %d s per run%n",
+                KEYS, writers, putsPerSecond, readers, replicationNanos / 1000, seconds);
+        System.out.printf("%-10s %10s %12s %10s %10s %10s%n", "mode", "puts", "gets", "p50 us", "p99 us", "p99.9 us");
+
+        run("monitor", new MonitorMode(), seconds, replicationNanos, putsPerSecond, writers, readers);
+        run("versioned", new VersionedMode(), seconds, replicationNanos, putsPerSecond, writers, readers);
+    }
+
+    private static void run(String name, Mode mode, int seconds, long replicationNanos,
+                            int putsPerSecond, int writers, int readers) throws InterruptedException {
+        for (int i = 0; i < KEYS; i++) {
+            mode.put("key" + i, "value" + i, 0);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder puts = new LongAdder();
+        Thread[] threads = new Thread[writers + readers];
+        long[][] samples = new long[readers][];
+        int[] counts = new int[readers];
+
+        long writeIntervalNanos = 1_000_000_000L * writers / putsPerSecond;
+        for (int w = 0; w < writers; w++) {
+            threads[w] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long next = System.nanoTime();
+                while (!stop.get()) {
+                    int k = rnd.nextInt(KEYS);
+                    mode.put("key" + k, "value" + rnd.nextInt(), replicationNanos);
+                    puts.increment();
+                    next += writeIntervalNanos;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+            }, "writer-" + w);
+        }
+        for (int r = 0; r < readers; r++) {
+            int idx = r;
+            samples[r] = new long[MAX_SAMPLES_PER_READER];
+            threads[writers + r] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long[] mine = samples[idx];
+                int n = 0;
+                while (!stop.get() && n < mine.length) {
+                    String key = "key" + rnd.nextInt(KEYS);
+                    long t0 = System.nanoTime();
+                    mode.get(key);
+                    mine[n++] = System.nanoTime() - t0;
+                    LockSupport.parkNanos(READ_PAUSE_NANOS);
+                }
+                counts[idx] = n;
+            }, "reader-" + r);
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        int total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (int r = 0; r < readers; r++) {
+            System.arraycopy(samples[r], 0, all, pos, counts[r]);
+            pos += counts[r];
+        }
+        Arrays.sort(all);
+
+        System.out.printf("%-10s %10d %12d %10.1f %10.1f %10.1f%n", name, puts.sum(), total,
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1000.0;
+    }
+}
@@ -0,0 +1,116 @@
+package bench;
+
+import replica.VersionedStore;
+import replica.VersionedStore.IndexKind;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cost of the two VersionedStore index layouts: a hash map plus a separate
+ * skip-list key index (HASH) versus one skip-list map (SKIPLIST).
+ *
+ * Usage:
+ *   mvn -Dexec.mainClass=bench.StoreIndexBenchmark -Dexec.args="[keys] [lookups]" exec:java
+ *
+ * Reports load time, point-lookup latency (hits and misses), ordered scan
+ * throughput and retained heap per key, single-threaded.
+ */
+public class StoreIndexBenchmark {
+
+    private static final int LOAD_BATCH = 1000;
+    private static final int SCAN_PAGE = 1000;
+
+    public static void main(String[] args) {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        String[] keyNames = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keyNames[i] = String.format("user:%08d", ThreadLocalRandom.current().nextInt(100_000_000));
+        }
+
+        System.out.printf("VersionedStore index layouts, %d keys, %d lookups%n", keys, lookups);
+        System.out.printf("%-9s %10s %12s %12s %14s %12s%n",
+                "index", "load ms", "get hit ns", "get miss ns", "scan ns/entry", "bytes/key");
+
+        // Run each twice and report the second pass, after the JIT has warmed up.
+        for (int pass = 0; pass < 2; pass++) {
+            for (IndexKind kind : IndexKind.values()) {
+                run(kind, keyNames, lookups, pass == 1);
+            }
+        }
+    }
+
+    private static void run(IndexKind kind, String[] keyNames, int lookups, boolean report) {
+        long heapBefore = usedHeap();
+
+        VersionedStore store = new VersionedStore(kind);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < keyNames.length; i++) {
+            store.put(keyNames[i], "value-" + i);
+            if (i % LOAD_BATCH == LOAD_BATCH - 1) {
+                store.publish();
+            }
+        }
+        store.publish();
+        long loadNanos = System.nanoTime() - t0;
+
+        long heapAfter = usedHeap();
+
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long sink = 0;
+        t0 = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            String v = store.get(keyNames[rnd.nextInt(keyNames.length)]);
+            sink += (v == null) ? 0 : v.length();
+        }
+        long hitNanos = System.nanoTime() - t0;
+
+        t0 = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            // same shape as real keys, but outside the generated range
+            String v = store.get("user:9" + (i & 0xFFFFF));
+            sink += (v == null) ? 0 : 1;
+        }
+        long missNanos = System.nanoTime() - t0;
+
+        long scanned = 0;
+        t0 = System.nanoTime();
+        String from = null;
+        boolean inclusive = true;
+        while (true) {
+            LinkedHashMap<String,String> page = store.scan(from, inclusive, null, SCAN_PAGE);
+            for (String k : page.keySet()) {
+                from = k;
+            }
+            inclusive = false;
+            scanned += page.size();
+            if (page.size() < SCAN_PAGE) {
+                break;
+            }
+        }
+        long scanNanos = System.nanoTime() - t0;
+
+        if (report) {
+            System.out.printf("%-9s %10.0f %12.1f %12.1f %14.1f %12.0f%n",
+                    kind.name().toLowerCase(),
+                    loadNanos / 1e6,
+                    (double) hitNanos / lookups,
+                    (double) missNanos / lookups,
+                    (double) scanNanos / Math.max(1, scanned),
+                    (double) (heapAfter - heapBefore) / Math.max(1, store.size()));
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
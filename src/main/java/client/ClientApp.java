@@ -2,20 +2,31 @@ package client;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import kv.Durability;
 import kv.KVServiceGrpc;
 import kv.PutRequest;
 import kv.PutReply;
 import kv.GetRequest;
 import kv.GetReply;
+import kv.BatchPutRequest;
+import kv.BatchPutReply;
+import kv.KeyValue;
+import kv.MultiGetRequest;
+import kv.MultiGetReply;
+import kv.ScanRequest;
 
+import java.util.Iterator;
 import java.util.Scanner;
 
 /**
  * Interactive client.
  *
  * Commands:
- *   PUT <key> <value>
+ *   PUT <key> <value> [all|quorum|async]
  *   GET <key>
+ *   MPUT <key1> <value1> [<key2> <value2> ...]
+ *   MGET <key1> [<key2> ...]
+ *   SCAN [prefix]
  *   EXIT
  */
 public class ClientApp {
@@ -30,7 +41,8 @@ public class ClientApp {
                 KVServiceGrpc.newBlockingStub(channel);
 
         System.out.println("Client ready.");
-        System.out.println("Commands: PUT <key> <value> | GET <key> | EXIT");
+        System.out.println("Commands: PUT <key> <value> [all|quorum|async] | GET <key> | "
+                + "MPUT <k1> <v1> [<k2> <v2> ...] | MGET <k1> [<k2> ...] | SCAN [prefix] | EXIT");
 
         Scanner sc = new Scanner(System.in);
         while (true) {
@@ -48,11 +60,13 @@ public class ClientApp {
                     String key = parts[1];
                     String value = parts[2];
 
-                    PutRequest req = PutRequest.newBuilder()
+                    PutRequest.Builder req = PutRequest.newBuilder()
                             .setKey(key)
-                            .setValue(value)
-                            .build();
-                    PutReply rep = stub.put(req);
+                            .setValue(value);
+                    if (parts.length >= 4) {
+                        req.setDurability(Durability.valueOf("DURABILITY_" + parts[3].toUpperCase()));
+                    }
+                    PutReply rep = stub.put(req.build());
                     System.out.println("ok=" + rep.getOk());
 
                 } else if (cmd.equals("GET") && parts.length >= 2) {
@@ -69,6 +83,47 @@ public class ClientApp {
                         System.out.println(key + " not found");
                     }
 
+                } else if (cmd.equals("MPUT") && parts.length >= 3 && parts.length % 2 == 1) {
+                    BatchPutRequest.Builder req = BatchPutRequest.newBuilder();
+                    for (int i = 1; i < parts.length; i += 2) {
+                        req.addEntries(KeyValue.newBuilder()
+                                .setKey(parts[i])
+                                .setValue(parts[i + 1]));
+                    }
+                    BatchPutReply rep = stub.batchPut(req.build());
+                    System.out.println("ok=" + rep.getOk());
+
+                } else if (cmd.equals("MGET") && parts.length >= 2) {
+                    MultiGetRequest.Builder req = MultiGetRequest.newBuilder();
+                    for (int i = 1; i < parts.length; i++) {
+                        req.addKeys(parts[i]);
+                    }
+                    MultiGetReply rep = stub.multiGet(req.build());
+
+                    for (int i = 0; i < rep.getResultsCount(); i++) {
+                        GetReply r = rep.getResults(i);
+                        String key = parts[i + 1];
+                        if (r.getFound()) {
+                            System.out.println(key + " = " + r.getValue());
+                        } else {
+                            System.out.println(key + " not found");
+                        }
+                    }
+
+                } else if (cmd.equals("SCAN")) {
+                    ScanRequest req = ScanRequest.newBuilder()
+                            .setPrefix(parts.length >= 2 ? parts[1] : "")
+                            .build();
+
+                    long count = 0;
+                    Iterator<KeyValue> it = stub.scan(req);
+                    while (it.hasNext()) {
+                        KeyValue kv = it.next();
+                        System.out.println(kv.getKey() + " = " + kv.getValue());
+                        count++;
+                    }
+                    System.out.println("(" + count + " entries)");
+
                 } else {
                     System.out.println("Unknown command / bad args.");
                 }
@@ -4,11 +4,16 @@ import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import replica.PrimaryAPI;
 import replica.ReplicaControl;
+import replica.ReplicaTransport;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Usage:
@@ -17,39 +22,78 @@ import java.util.List;
  *
  * First arg is the initial primary ID (e.g., 1).
  * Remaining args are backup IDs in failover order (e.g., 2 3 4).
+ *
+ * Options:
+ *   --virtual-threads   run gRPC handlers and replica RMI calls on a
+ *                       virtual-thread-per-task executor (Java 21+)
+ *   --transport=rmi|grpc  how to call the replicas (default: rmi); grpc needs
+ *                       the replicas started with --transport=grpc too
+ *   --grpc-port-base=N  replicaN serves gRPC on port N + this (default: 50100)
+ *   --grpc-deadline-ms=N  longest a gRPC read or ping to a replica may take; writes
+ *                       and promotion have no deadline (default: 60000)
  */
 public class FrontEndServer {
 
-    public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.err.println("Usage: FrontEndServer <primaryId> <backupId1> [backupId2 ...]");
+    public static void main(String[] rawArgs) throws Exception {
+        // Split "--name[=value]" options from positional args.
+        List<String> args = new ArrayList<>();
+        Map<String,String> options = new HashMap<>();
+        for (String a : rawArgs) {
+            if (a.startsWith("--")) {
+                int eq = a.indexOf('=');
+                if (eq < 0) {
+                    options.put(a.substring(2), "true");
+                } else {
+                    options.put(a.substring(2, eq), a.substring(eq + 1));
+                }
+            } else {
+                args.add(a);
+            }
+        }
+        boolean virtualThreads = options.containsKey("virtual-threads");
+        ReplicaTransport transport = ReplicaTransport.fromOptions(options);
+
+        if (args.size() < 2) {
+            System.err.println("Usage: FrontEndServer <primaryId> <backupId1> [backupId2 ...]"
+                    + " [--virtual-threads] [--transport=rmi|grpc] [--grpc-port-base=N] [--grpc-deadline-ms=N]");
             System.exit(1);
         }
 
-        String primaryId = args[0];
+        String primaryId = args.get(0);
         List<String> backupIds = new ArrayList<>();
-        for (int i = 1; i < args.length; i++) 
-            backupIds.add(args[i]);
+        for (int i = 1; i < args.size(); i++) 
+            backupIds.add(args.get(i));
 
         Registry reg = LocateRegistry.getRegistry();
 
         String primaryName = "replica" + primaryId;
         System.out.println("[FrontEnd] Initial primary = " + primaryName);
 
-        PrimaryAPI primaryStub = (PrimaryAPI) reg.lookup(primaryName);
+        PrimaryAPI primaryStub = (PrimaryAPI) transport.lookup(reg, primaryName);
 
         List<ReplicaControl> backupStubs = new ArrayList<>();
         for (String bid : backupIds) {
             String name = "replica" + bid;
-            ReplicaControl stub = (ReplicaControl) reg.lookup(name);
+            ReplicaControl stub = transport.lookup(reg, name);
             backupStubs.add(stub);
             System.out.println("[FrontEnd] Added backup = " + name);
         }
 
-        KVServiceImpl svc = new KVServiceImpl(primaryStub, backupStubs);
+        ServerBuilder<?> builder = ServerBuilder.forPort(50055);
+        KVServiceImpl svc;
+        if (virtualThreads) {
+            // Handlers and their blocking RMI calls each get a cheap virtual thread,
+            // so concurrency is not capped by a platform thread pool.
+            ExecutorService vt = newVirtualThreadExecutor();
+            builder.executor(vt);
+            svc = new KVServiceImpl(primaryStub, backupStubs, vt, transport);
+            System.out.println("[FrontEnd] Using virtual-thread-per-task executor");
+        } else {
+            svc = new KVServiceImpl(primaryStub, backupStubs, transport);
+        }
+        System.out.println("[FrontEnd] Replica transport: " + transport);
 
-        Server grpcServer = ServerBuilder
-                .forPort(50055)
+        Server grpcServer = builder
                 .addService(svc)
                 .build()
                 .start();
@@ -58,4 +102,20 @@ public class FrontEndServer {
         System.out.println("[FrontEnd] Press Ctrl+C to stop.");
         grpcServer.awaitTermination();
     }
-}
\ No newline at end of file
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up reflectively so the
+     * Java 17 build still compiles. Run the frontend on a Java 21+ JVM to use it.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("--virtual-threads needs Java 21+, running " + Runtime.version());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual-thread executor", e);
+        }
+    }
+}
@@ -1,21 +1,38 @@
 package frontend;
 
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import kv.KVServiceGrpc;
 import kv.PutRequest;
 import kv.PutReply;
 import kv.GetRequest;
 import kv.GetReply;
+import kv.BatchPutReply;
+import kv.BatchPutRequest;
+import kv.Durability;
+import kv.KeyValue;
+import kv.MultiGetReply;
+import kv.MultiGetRequest;
+import kv.ScanRequest;
+import kv.StreamPutReply;
+import replica.AckPolicy;
 import replica.PrimaryAPI;
 import replica.ReplicaControl;
+import replica.ReplicaTransport;
 
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 public class KVServiceImpl extends KVServiceGrpc.KVServiceImplBase {
@@ -29,9 +46,42 @@ public class KVServiceImpl extends KVServiceGrpc.KVServiceImplBase {
     // Names discovered in rmiregistry and found dead to avoid spamming logs
     private final List<String> ignoredReplicaNames = new ArrayList<>();
 
+    // Entries per BatchPut when forwarding a StreamPut to the primary.
+    private static final int STREAM_BATCH_SIZE = 1000;
+
+    // Entries per primary round-trip for a Scan that does not set page_size.
+    private static final int DEFAULT_SCAN_PAGE_SIZE = 1000;
+
+    // Runs the blocking RMI calls so gRPC handler threads return immediately.
+    private final Executor rmiExecutor;
+
+    // how replicas found in the registry are called (RMI stubs or gRPC clients)
+    private final ReplicaTransport transport;
+
     public KVServiceImpl(PrimaryAPI initialPrimary, List<ReplicaControl> backupsInOrder) {
+        this(initialPrimary, backupsInOrder, ReplicaTransport.rmi());
+    }
+
+    public KVServiceImpl(PrimaryAPI initialPrimary, List<ReplicaControl> backupsInOrder,
+                         ReplicaTransport transport) {
+        this(initialPrimary, backupsInOrder, Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "frontend-rmi");
+            t.setDaemon(true);
+            return t;
+        }), transport);
+    }
+
+    public KVServiceImpl(PrimaryAPI initialPrimary, List<ReplicaControl> backupsInOrder,
+                         Executor rmiExecutor) {
+        this(initialPrimary, backupsInOrder, rmiExecutor, ReplicaTransport.rmi());
+    }
+
+    public KVServiceImpl(PrimaryAPI initialPrimary, List<ReplicaControl> backupsInOrder,
+                         Executor rmiExecutor, ReplicaTransport transport) {
         this.primaryStub = initialPrimary;
         this.remainingBackups = new ArrayList<>(backupsInOrder);
+        this.rmiExecutor = rmiExecutor;
+        this.transport = transport;
 
         // Start a background discovery loop to see newly joined replicas.
         Thread discoveryThread = new Thread(this::discoveryLoop, "frontend-discovery");
@@ -67,157 +117,420 @@ public class KVServiceImpl extends KVServiceGrpc.KVServiceImplBase {
     public void put(PutRequest request, StreamObserver<PutReply> responseObserver) {
         String key = request.getKey();
         String value = request.getValue();
+        AckPolicy policy = toAckPolicy(request.getDurability());
+
+        // 1) Call handleClientPut on the primary replica off the gRPC thread.
+        // 2) Reply when the call completes; failover to a backup happens inside callPrimary().
+        callPrimary("PUT", primary -> primary.handleClientPut(key, value, policy))
+                .whenComplete((ok, err) -> {
+                    if (err != null) {
+                        replyError(responseObserver, err);
+                        return;
+                    }
 
-        boolean ok = false;
-        RemoteException lastRemoteEx = null;
+                    // Build a reply and send it back to the client.
+                    PutReply reply = PutReply.newBuilder()
+                            .setOk(ok)
+                            .build();
 
-        // 1) call handleClientPut on the primary replica (primaryStub)
-        // 2) update the boolean ok (if needed)
-        // 3) Implement a failure detector –
-        //      a) Use try, catch (using appropriate exception) to detect failure
-        //      b) If primary has failed, then failover to backup, using failoverToBackup()
+                    responseObserver.onNext(reply);
+                    responseObserver.onCompleted();
+                });
+    }
 
-        // Try with current primary, if it fails, try to failover through backups.
-        while (true) {
-            PrimaryAPI currentPrimary = primaryStub;
-            if (currentPrimary == null) {
-                break; // No primary.
-            }
+    @Override
+    public void get(GetRequest request, StreamObserver<GetReply> responseObserver) {
+        String key = request.getKey();
 
-            try {
-                ok = currentPrimary.handleClientPut(key, value);
-                // Success on some primary.
-                break;
-            } catch (RemoteException e) {
-                System.err.println("[FrontEnd] RemoteException on put: " + e);
-                lastRemoteEx = e;
-                
-                // Try to fail over to the next available backup.
-                ReplicaControl backupToPromote = null;
-                synchronized (this) {
-                    if (!remainingBackups.isEmpty()) {
-                        backupToPromote = remainingBackups.get(0);
+        // 1) Call handleClientGet on the primary replica off the gRPC thread.
+        // 2) Reply when the call completes; failover to a backup happens inside callPrimary().
+        callPrimary("GET", primary -> primary.handleClientGet(key))
+                .whenComplete((value, err) -> {
+                    if (err != null) {
+                        replyError(responseObserver, err);
+                        return;
                     }
-                }
 
-                if (backupToPromote == null) {
-                    // No backups left to promote.
-                    System.err.println("[FrontEnd] No backups available for failover on put.");
-                    primaryStub = null;
-                    break;
-                }
+                    boolean found = (value != null);
 
-                try {
-                    failoverToBackup(backupToPromote);
-                    // Loop again with new primary.
-                } catch (RemoteException promoteEx) {
-                    System.err.println("[FrontEnd] Failed to promote backup during put: " + promoteEx);
-                    lastRemoteEx = promoteEx;
-                    // Remove this backup from the list and try the next one in the next iteration.
-                    synchronized (this) {
-                        remainingBackups.remove(backupToPromote);
+                    // Build a reply and send it back to the client.
+                    GetReply reply = GetReply.newBuilder()
+                            .setFound(found)
+                            .setValue(found ? value : "")
+                            .build();
+
+                    responseObserver.onNext(reply);
+                    responseObserver.onCompleted();
+                });
+    }
+
+    @Override
+    public void batchPut(BatchPutRequest request, StreamObserver<BatchPutReply> responseObserver) {
+        // Later entries win if a key repeats, as if sent as separate PUTs.
+        Map<String,String> entries = new LinkedHashMap<>();
+        for (KeyValue kv : request.getEntriesList()) {
+            entries.put(kv.getKey(), kv.getValue());
+        }
+        AckPolicy policy = toAckPolicy(request.getDurability());
+
+        // One RMI call to the primary for the whole batch.
+        callPrimary("BATCHPUT", primary -> primary.handleClientBatchPut(entries, policy))
+                .whenComplete((ok, err) -> {
+                    if (err != null) {
+                        replyError(responseObserver, err);
+                        return;
                     }
-                }
+
+                    responseObserver.onNext(BatchPutReply.newBuilder().setOk(ok).build());
+                    responseObserver.onCompleted();
+                });
+    }
+
+    @Override
+    public void multiGet(MultiGetRequest request, StreamObserver<MultiGetReply> responseObserver) {
+        List<String> keys = new ArrayList<>(request.getKeysList());
+
+        // One RMI call to the primary for all keys.
+        callPrimary("MULTIGET", primary -> primary.handleClientMultiGet(keys))
+                .whenComplete((values, err) -> {
+                    if (err != null) {
+                        replyError(responseObserver, err);
+                        return;
+                    }
+
+                    MultiGetReply.Builder reply = MultiGetReply.newBuilder();
+                    for (String key : keys) {
+                        String value = values.get(key);
+                        reply.addResults(GetReply.newBuilder()
+                                .setFound(value != null)
+                                .setValue(value != null ? value : ""));
+                    }
+
+                    responseObserver.onNext(reply.build());
+                    responseObserver.onCompleted();
+                });
+    }
+
+    @Override
+    public StreamObserver<KeyValue> streamPut(StreamObserver<StreamPutReply> responseObserver) {
+        ServerCallStreamObserver<StreamPutReply> call =
+                (ServerCallStreamObserver<StreamPutReply>) responseObserver;
+        // We pull messages ourselves so a slow primary pushes back on the client.
+        call.disableAutoRequest();
+        StreamPutHandler handler = new StreamPutHandler(call);
+        call.request(STREAM_BATCH_SIZE);
+        return handler;
+    }
+
+    /**
+     * Forwards one StreamPut call to the primary in batches of STREAM_BATCH_SIZE.
+     *
+     * At most one batch is in flight to the primary while the next one fills up;
+     * more messages are requested from the client only when a batch is sent, so
+     * the frontend buffers at most two batches per stream. Keeping one batch in
+     * flight also preserves the stream's order for repeated keys.
+     */
+    private final class StreamPutHandler implements StreamObserver<KeyValue> {
+
+        private final ServerCallStreamObserver<StreamPutReply> call;
+
+        private Map<String,String> pending = new LinkedHashMap<>();
+        private int buffered;       // messages in pending (repeated keys collapse)
+        private long received;
+        private boolean inFlight;
+        private boolean halfClosed;
+        private boolean done;
+        private boolean allOk = true;
+
+        StreamPutHandler(ServerCallStreamObserver<StreamPutReply> call) {
+            this.call = call;
+        }
+
+        @Override
+        public synchronized void onNext(KeyValue kv) {
+            if (done) {
+                return;
+            }
+            pending.put(kv.getKey(), kv.getValue());
+            buffered++;
+            received++;
+            if (buffered >= STREAM_BATCH_SIZE && !inFlight) {
+                flush();
             }
         }
 
-        if (primaryStub == null && !ok) {
-            // No primary available. Report a gRPC error.
-            responseObserver.onError(
-                    Status.UNAVAILABLE
-                            .withDescription("No replicas available to handle PUT request.")
-                            .withCause(lastRemoteEx)
-                            .asRuntimeException()
-            );
-            return;
+        @Override
+        public synchronized void onCompleted() {
+            halfClosed = true;
+            if (!inFlight) {
+                flushOrFinish();
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            // Client went away; drop what we buffered.
+            System.err.println("[FrontEnd] StreamPut cancelled by client: " + t);
+            done = true;
+            pending = new LinkedHashMap<>();
         }
 
-        // Build a reply and send it back to the client.
-        PutReply reply = PutReply.newBuilder()
-                .setOk(ok)
-                .build();
+        private void flush() {
+            Map<String,String> batch = pending;
+            pending = new LinkedHashMap<>();
+            buffered = 0;
+            inFlight = true;
+            if (!halfClosed) {
+                call.request(STREAM_BATCH_SIZE);
+            }
+
+            callPrimary("STREAMPUT", primary -> primary.handleClientBatchPut(batch, null))
+                    .whenComplete(this::onBatchDone);
+        }
+
+        private synchronized void onBatchDone(Boolean ok, Throwable err) {
+            inFlight = false;
+            if (done) {
+                return;
+            }
+            if (err != null) {
+                done = true;
+                replyError(call, err);
+                return;
+            }
+            allOk &= ok;
+
+            if (buffered >= STREAM_BATCH_SIZE) {
+                flush();
+            } else if (halfClosed) {
+                flushOrFinish();
+            }
+        }
 
-        responseObserver.onNext(reply);
-        responseObserver.onCompleted();
+        private void flushOrFinish() {
+            if (buffered > 0) {
+                flush();
+                return;
+            }
+            done = true;
+            call.onNext(StreamPutReply.newBuilder()
+                    .setOk(allOk)
+                    .setCount(received)
+                    .build());
+            call.onCompleted();
+        }
     }
 
     @Override
-    public void get(GetRequest request, StreamObserver<GetReply> responseObserver) {
-        String key = request.getKey();
-        String value = null;
-        boolean found = false;
-        RemoteException lastRemoteEx = null;
+    public void scan(ScanRequest request, StreamObserver<KeyValue> responseObserver) {
+        String fromKey;
+        String toKey;
+        if (!request.getPrefix().isEmpty()) {
+            fromKey = request.getPrefix();
+            toKey = prefixEnd(request.getPrefix());
+        } else {
+            fromKey = request.getStartKey().isEmpty() ? null : request.getStartKey();
+            toKey = request.getEndKey().isEmpty() ? null : request.getEndKey();
+        }
+        int pageSize = (request.getPageSize() > 0) ? request.getPageSize() : DEFAULT_SCAN_PAGE_SIZE;
+        long limit = (request.getLimit() > 0) ? request.getLimit() : Long.MAX_VALUE;
 
-        // 1) Call handleClientGet on the primary replica (primaryStub)
-        // 2) update value and found variables (if needed)
-        // 3) Implement a failure detector –
-        //      a) Use try, catch (using appropriate exception) to detect failure
-        //      b) If primary has failed, then failover to backup, using failoverToBackup()
+        ServerCallStreamObserver<KeyValue> call = (ServerCallStreamObserver<KeyValue>) responseObserver;
+        new ScanHandler(call, fromKey, toKey, pageSize, limit).start();
+    }
 
-        // Try with current primary, if it fails, try to failover through backups.
-        while (true) {
-            PrimaryAPI currentPrimary = primaryStub;
-            if (currentPrimary == null) {
-                break; // No primary. Error handled below.
+    /**
+     * Streams a scan to the client one page at a time. The next page is only
+     * fetched from the primary once gRPC reports the client is ready for more,
+     * so a slow reader holds back the scan instead of filling frontend memory.
+     */
+    private final class ScanHandler {
+
+        private final ServerCallStreamObserver<KeyValue> call;
+        private final String toKey;
+        private final int pageSize;
+
+        private String nextFrom;
+        private boolean nextInclusive = true;
+        private long remaining;
+        private boolean fetching;
+        private boolean done;
+
+        ScanHandler(ServerCallStreamObserver<KeyValue> call, String fromKey, String toKey,
+                    int pageSize, long limit) {
+            this.call = call;
+            this.nextFrom = fromKey;
+            this.toKey = toKey;
+            this.pageSize = pageSize;
+            this.remaining = limit;
+        }
+
+        void start() {
+            call.setOnReadyHandler(this::fetchIfReady);
+            call.setOnCancelHandler(this::cancel);
+            fetchIfReady();
+        }
+
+        private synchronized void cancel() {
+            done = true;
+        }
+
+        private synchronized void fetchIfReady() {
+            if (done || fetching || !call.isReady()) {
+                return;
             }
+            fetching = true;
 
-            try {
-                value = currentPrimary.handleClientGet(key);
-                found = (value != null);
-                // Success on some primary.
-                break;
-            } catch (RemoteException e) {
-                System.err.println("[FrontEnd] RemoteException on put: " + e);
-                lastRemoteEx = e;
-                
-                // Try to fail over to the next available backup.
-                ReplicaControl backupToPromote = null;
-                synchronized (this) {
-                    if (!remainingBackups.isEmpty()) {
-                        backupToPromote = remainingBackups.get(0);
-                    }
-                }
+            String from = nextFrom;
+            boolean inclusive = nextInclusive;
+            int limit = (int) Math.min(pageSize, remaining);
+            callPrimary("SCAN", primary -> primary.handleClientScan(from, inclusive, toKey, limit))
+                    .whenComplete(this::onPage);
+        }
 
-                if (backupToPromote == null) {
-                    // No backups left to promote.
-                    System.err.println("[FrontEnd] No backups available for failover on put.");
-                    primaryStub = null;
-                    break;
-                }
+        private synchronized void onPage(LinkedHashMap<String,String> page, Throwable err) {
+            fetching = false;
+            if (done) {
+                return;
+            }
+            if (err != null) {
+                done = true;
+                replyError(call, err);
+                return;
+            }
 
-                try {
-                    failoverToBackup(backupToPromote);
-                    // Loop again with new primary.
-                } catch (RemoteException promoteEx) {
-                    System.err.println("[FrontEnd] Failed to promote backup during put: " + promoteEx);
-                    lastRemoteEx = promoteEx;
-                    // Remove this backup from the list and try the next one in the next iteration.
-                    synchronized (this) {
-                        remainingBackups.remove(backupToPromote);
-                    }
-                }
+            for (Map.Entry<String,String> e : page.entrySet()) {
+                call.onNext(KeyValue.newBuilder()
+                        .setKey(e.getKey())
+                        .setValue(e.getValue())
+                        .build());
+                nextFrom = e.getKey();
             }
+            nextInclusive = false;
+            remaining -= page.size();
+
+            if (page.size() < pageSize || remaining <= 0) {
+                done = true;
+                call.onCompleted();
+                return;
+            }
+            fetchIfReady();
         }
+    }
 
-        if (primaryStub == null && !found) {
+    /**
+     * Smallest key greater than every key starting with prefix, or null if none.
+     */
+    private static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * A blocking RMI call against the current primary.
+     */
+    @FunctionalInterface
+    private interface PrimaryCall<T> {
+        T apply(PrimaryAPI primary) throws RemoteException;
+    }
+
+    /**
+     * Run call against the current primary on the RMI executor and complete the
+     * returned future with its result. On RemoteException, fail over to the next
+     * backup and retry; if no replica is left, complete with UNAVAILABLE.
+     */
+    private <T> CompletableFuture<T> callPrimary(String op, PrimaryCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(op, call, result, null);
+        return result;
+    }
+
+    private <T> void attempt(String op, PrimaryCall<T> call, CompletableFuture<T> result,
+                             RemoteException lastRemoteEx) {
+        PrimaryAPI currentPrimary = primaryStub;
+        if (currentPrimary == null) {
             // No primary available. Report a gRPC error.
-            responseObserver.onError(
+            result.completeExceptionally(
                     Status.UNAVAILABLE
-                            .withDescription("No replicas available to handle GET request.")
+                            .withDescription("No replicas available to handle " + op + " request.")
                             .withCause(lastRemoteEx)
-                            .asRuntimeException()
-            );
+                            .asRuntimeException());
+            return;
+        }
+
+        rmiExecutor.execute(() -> {
+            try {
+                result.complete(call.apply(currentPrimary));
+            } catch (RemoteException e) {
+                System.err.println("[FrontEnd] RemoteException on " + op + ": " + e);
+                failoverFrom(currentPrimary, op);
+                // Loop again with new primary (or report that none is left).
+                attempt(op, call, result, e);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Promote the next live backup, unless another request already replaced failedPrimary.
+     */
+    private synchronized void failoverFrom(PrimaryAPI failedPrimary, String op) {
+        if (primaryStub != failedPrimary) {
+            // Another in-flight request already failed over.
             return;
         }
 
-        // Build a reply and send it back to the client.
-        GetReply reply = GetReply.newBuilder()
-                .setFound(found)
-                .setValue(found ? value : "")
-                .build();
+        // Try to fail over to the next available backup.
+        while (!remainingBackups.isEmpty()) {
+            ReplicaControl backupToPromote = remainingBackups.get(0);
+            try {
+                failoverToBackup(backupToPromote);
+                return;
+            } catch (RemoteException promoteEx) {
+                System.err.println("[FrontEnd] Failed to promote backup during " + op + ": " + promoteEx);
+                // Remove this backup from the list and try the next one.
+                remainingBackups.remove(backupToPromote);
+            }
+        }
+
+        // No backups left to promote.
+        System.err.println("[FrontEnd] No backups available for failover on " + op + ".");
+        primaryStub = null;
+    }
+
+    private static void replyError(StreamObserver<?> responseObserver, Throwable err) {
+        if (err instanceof CompletionException && err.getCause() != null) {
+            err = err.getCause();
+        }
+        if (err instanceof StatusRuntimeException) {
+            responseObserver.onError(err);
+        } else {
+            responseObserver.onError(Status.fromThrowable(err).asRuntimeException());
+        }
+    }
 
-        responseObserver.onNext(reply);
-        responseObserver.onCompleted();
+    /**
+     * Map the client's requested durability onto the replica's ack policy.
+     * Returns null for the default so the primary applies its own setting.
+     */
+    private static AckPolicy toAckPolicy(Durability durability) {
+        switch (durability) {
+            case DURABILITY_ALL:
+                return AckPolicy.ALL;
+            case DURABILITY_QUORUM:
+                return AckPolicy.QUORUM;
+            case DURABILITY_ASYNC:
+                return AckPolicy.ASYNC;
+            default:
+                return null;
+        }
     }
 
     /**
@@ -262,7 +575,7 @@ public class KVServiceImpl extends KVServiceGrpc.KVServiceImplBase {
                 }
 
                 try {
-                    ReplicaControl stub = (ReplicaControl) reg.lookup(name);
+                    ReplicaControl stub = transport.lookup(reg, name);
 
                     // Skip the current primary.
                     if (primaryStub != null && stub.equals(primaryStub)) {
@@ -283,19 +596,25 @@ public class KVServiceImpl extends KVServiceGrpc.KVServiceImplBase {
                         continue;
                     }
 
-                    // Check that the replica is alive.
-                    if (!stub.ping()) {
-                        // Mark this name as dead to avoid repeated log spam.
-                        synchronized (this) {
-                            ignoredReplicaNames.add(name);
+                    // Check that the replica is reachable (throws if not). It may answer
+                    // false if an earlier state transfer was cut short; it resumes below.
+                    stub.ping();
+
+                    // Have the new backup pull the state straight from the primary, page by
+                    // page, instead of relaying the whole map through the frontend. A replica
+                    // restarted with its data dir only pulls the mutations it missed.
+                    try {
+                        if (currentPrimary instanceof ReplicaControl) {
+                            stub.syncFrom((ReplicaControl) currentPrimary);
+                        } else {
+                            stub.pushFullState(currentPrimary.getState());
                         }
+                    } catch (RemoteException e) {
+                        // Not dead, just not synced; try again (resuming) on the next round.
+                        System.err.println("[FrontEnd] State transfer to " + name + " failed, will retry: " + e);
                         continue;
                     }
 
-                    // Fetch current state from the primary and push it to the new backup.
-                    Map<String,String> state = currentPrimary.getState();
-                    stub.pushFullState(state);
-
                     // Add this replica to the backup list so it can be promoted on future failures.
                     synchronized (this) {
                         remainingBackups.add(stub);
@@ -0,0 +1,43 @@
+package replica;
+
+/**
+ * How many backups must acknowledge a PUT before the primary replies.
+ */
+public enum AckPolicy {
+
+    // Wait for every backup of the group. The PUT reports false if one of
+    // them is down or does not ack; it stays applied wherever it got to.
+    ALL,
+
+    // Wait for a majority of the replica group (primary + backups, reachable or not).
+    // The PUT reports false if too many backups fail to reach that majority.
+    QUORUM,
+
+    // Reply once the primary has applied the write; replicate in the background.
+    ASYNC;
+
+    /**
+     * Number of backup acks needed in a group with backupCount backups,
+     * counting the ones that are down. Sizing this on the live backups only
+     * would let a QUORUM write succeed on the primary alone once enough had failed.
+     */
+    public int requiredAcks(int backupCount) {
+        switch (this) {
+            case ALL:
+                return backupCount;
+            case QUORUM:
+                // majority of (backupCount + 1), minus the primary's own copy
+                return (backupCount + 1) / 2;
+            default:
+                return 0;
+        }
+    }
+
+    public static AckPolicy parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown ack policy: " + name + " (expected all, quorum or async)");
+        }
+    }
+}
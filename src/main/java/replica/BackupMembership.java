@@ -0,0 +1,214 @@
+package replica;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the list of live backups up to date in the background, so the write
+ * path only reads a cached, immutable list instead of scanning the registry.
+ *
+ * The list is refreshed every refreshMillis, and straight away when a push
+ * to a backup fails. Stubs are cached per registry name and only looked up
+ * again when the cached one stops answering ping().
+ *
+ * Backups that join or come back after being down are handed to onAdded,
+ * so the primary can catch them up without waiting for the next write.
+ */
+public class BackupMembership {
+
+    // pattern to recognise replica bindings in the registry
+    private static final Pattern REPLICA_NAME = Pattern.compile("^replica\\d+$");
+
+    private final String myId;
+    private final long refreshMillis;
+    private final ReplicaTransport transport;
+    private final Consumer<ReplicaControl> onAdded;
+
+    // current backups; replaced wholesale, never mutated
+    private volatile List<ReplicaControl> current;
+
+    // guarded by refreshLock
+    private final Object refreshLock = new Object();
+    private final Map<String,ReplicaControl> stubsByName = new HashMap<>();
+    // names already reported as down, to avoid spamming logs
+    private final Set<String> downNames = new HashSet<>();
+
+    // registry name of each stub found by the last scan, for log messages; replaced wholesale
+    private volatile Map<ReplicaControl,String> namesByStub = Map.of();
+
+    // backups bound in the registry at the last scan, reachable or not (a crashed
+    // replica stays bound); the initial list's size until a scan succeeds
+    private volatile int knownBackups;
+
+    private final Object wakeup = new Object();
+    private boolean refreshRequested;
+
+    public BackupMembership(String myId, List<ReplicaControl> initialBackups, long refreshMillis,
+                            ReplicaTransport transport, Consumer<ReplicaControl> onAdded) {
+        this.myId = myId;
+        this.refreshMillis = refreshMillis;
+        this.transport = transport;
+        this.onAdded = onAdded;
+        this.current = List.copyOf(initialBackups);
+        this.knownBackups = initialBackups.size();
+
+        Thread refresher = new Thread(this::refreshLoop, "replica" + myId + "-membership");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * The cached backup list. Cheap; safe to call on every write.
+     */
+    public List<ReplicaControl> current() {
+        return current;
+    }
+
+    /**
+     * Size of the backup group that ack policies are measured against: every
+     * backup known to exist, including those currently down.
+     */
+    public int knownBackups() {
+        return Math.max(knownBackups, current.size());
+    }
+
+    /**
+     * Registry name of a backup, or "a backup" if no scan has found it yet.
+     */
+    public String nameOf(ReplicaControl backup) {
+        return namesByStub.getOrDefault(backup, "a backup");
+    }
+
+    public synchronized void setBackups(List<ReplicaControl> newBackups) {
+        current = List.copyOf(newBackups);
+    }
+
+    /**
+     * Drop a backup that failed a push and schedule a refresh.
+     */
+    public void markFailed(ReplicaControl backup) {
+        synchronized (this) {
+            List<ReplicaControl> next = new ArrayList<>(current);
+            if (next.remove(backup)) {
+                current = List.copyOf(next);
+            }
+        }
+        synchronized (wakeup) {
+            refreshRequested = true;
+            wakeup.notifyAll();
+        }
+    }
+
+    /**
+     * Rescan the registry now and return the fresh list.
+     */
+    public List<ReplicaControl> refreshNow() {
+        synchronized (refreshLock) {
+            List<ReplicaControl> before = current;
+            List<ReplicaControl> discovered = discoverBackups();
+            setBackups(discovered);
+            for (ReplicaControl backup : discovered) {
+                if (!before.contains(backup)) {
+                    onAdded.accept(backup);
+                }
+            }
+            return current;
+        }
+    }
+
+    private void refreshLoop() {
+        while (true) {
+            try {
+                synchronized (wakeup) {
+                    if (!refreshRequested) {
+                        wakeup.wait(refreshMillis);
+                    }
+                    refreshRequested = false;
+                }
+                refreshNow();
+            } catch (InterruptedException e) {
+                // Thread interrupted. Exit loop.
+                return;
+            } catch (Exception e) {
+                System.err.println("[Replica " + myId + "] Membership refresh error: " + e);
+            }
+        }
+    }
+
+    private List<ReplicaControl> discoverBackups() {
+
+        List<ReplicaControl> result = new ArrayList<>();
+
+        try {
+            Registry reg = LocateRegistry.getRegistry(); // default host=localhost, port=1099
+            String[] names = reg.list();
+
+            String myName = "replica" + myId;
+            int bound = 0;
+
+            for (String name : names) {
+                // Only bindings whose names match "replica<id>", other than my own.
+                if (!REPLICA_NAME.matcher(name).matches() || name.equals(myName)) {
+                    continue;
+                }
+                bound++;
+
+                ReplicaControl stub = stubsByName.get(name);
+                try {
+                    // Reuse the cached stub while it still answers; otherwise look it up again,
+                    // since a restarted replica rebinds the same name with a new stub.
+                    if (stub == null || !isAlive(stub)) {
+                        stub = transport.lookup(reg, name);
+                        if (!stub.ping()) {
+                            stub = null;
+                        }
+                    }
+                } catch (Exception e) {
+                    stub = null;
+                    if (downNames.add(name)) {
+                        System.err.println("[Replica " + myId + "] WARNING: could not add backup " + name + ": " + e);
+                    }
+                }
+
+                if (stub == null) {
+                    stubsByName.remove(name);
+                    downNames.add(name);
+                    continue;
+                }
+                if (downNames.remove(name) || !stubsByName.containsKey(name)) {
+                    System.out.println("[Replica " + myId + "] Backup " + name + " is reachable.");
+                }
+                stubsByName.put(name, stub);
+                result.add(stub);
+            }
+            // Forget cached stubs whose bindings disappeared.
+            stubsByName.keySet().retainAll(List.of(names));
+            Map<ReplicaControl,String> byStub = new HashMap<>();
+            stubsByName.forEach((name, stub) -> byStub.put(stub, name));
+            namesByStub = byStub;
+            knownBackups = bound;
+        } catch (Exception e) {
+            System.err.println("[Replica " + myId + "] ERROR during discoverBackups: " + e);
+            // Keep what we had rather than dropping every backup on a registry hiccup.
+            return current;
+        }
+
+        return result;
+    }
+
+    private static boolean isAlive(ReplicaControl stub) {
+        try {
+            return stub.ping();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
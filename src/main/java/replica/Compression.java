@@ -0,0 +1,33 @@
+package replica;
+
+/**
+ * Block compression for encoded replication payloads (see ReplicationCodec).
+ * A replica started with --compression=deflate compresses what it sends to
+ * peers that were started the same way, and asks for compressed state pages
+ * when it pulls a state transfer. Decoders accept either form.
+ */
+public enum Compression {
+
+    // Payloads go as encoded. Cheapest on CPU; the right choice within a rack.
+    NONE,
+
+    // java.util.zip Deflate at its fastest level: a fraction of the bytes for
+    // JSON-like values, at some CPU on both ends.
+    DEFLATE;
+
+    /**
+     * What a link uses when one end offers offered and the other end is
+     * configured with accepted: the offer if both want it, else NONE.
+     */
+    public static Compression agree(Compression offered, Compression accepted) {
+        return (offered == accepted) ? offered : NONE;
+    }
+
+    public static Compression parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown compression: " + name + " (expected none or deflate)");
+        }
+    }
+}
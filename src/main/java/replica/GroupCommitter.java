@@ -0,0 +1,100 @@
+package replica;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects concurrent PUTs on the primary and hands them to a single
+ * committer thread in batches, so one replication round-trip covers many writes.
+ *
+ * A batch is cut when maxBatchSize PUTs are queued or the window since the
+ * first PUT of the batch has elapsed. With a zero window the committer takes
+ * whatever queued up while the previous batch was being committed; the
+ * handler may complete results after it returns, once backups have acked.
+ */
+class GroupCommitter {
+
+    static final class PendingPut {
+        // one entry for a plain PUT, many for a BatchPut; always committed together
+        final Map<String,String> entries;
+        final AckPolicy policy;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingPut(Map<String,String> entries, AckPolicy policy) {
+            this.entries = entries;
+            this.policy = policy;
+        }
+    }
+
+    interface BatchHandler {
+        // Apply and replicate the batch, completing every PendingPut's result.
+        void commit(List<PendingPut> batch);
+    }
+
+    private final BlockingQueue<PendingPut> queue = new LinkedBlockingQueue<>();
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final BatchHandler handler;
+
+    GroupCommitter(String threadName, long windowMillis, int maxBatchSize, BatchHandler handler) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatchSize = maxBatchSize;
+        this.handler = handler;
+
+        Thread committer = new Thread(this::commitLoop, threadName);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    CompletableFuture<Boolean> submit(String key, String value, AckPolicy policy) {
+        return submit(Collections.singletonMap(key, value), policy);
+    }
+
+    CompletableFuture<Boolean> submit(Map<String,String> entries, AckPolicy policy) {
+        PendingPut put = new PendingPut(entries, policy);
+        queue.add(put);
+        return put.result;
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<PendingPut> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatchSize - batch.size());
+
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        break;
+                    }
+                    PendingPut next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+
+                handler.commit(batch);
+            } catch (InterruptedException e) {
+                // Thread interrupted. Fail what we hold and exit loop.
+                for (PendingPut p : batch) {
+                    p.result.completeExceptionally(e);
+                }
+                return;
+            } catch (RuntimeException e) {
+                for (PendingPut p : batch) {
+                    p.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package replica;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import replica.rpc.BatchPutCall;
+import replica.rpc.Blob;
+import replica.rpc.ChunkCall;
+import replica.rpc.ChunkReply;
+import replica.rpc.CompressionCall;
+import replica.rpc.Empty;
+import replica.rpc.Entry;
+import replica.rpc.KeyCall;
+import replica.rpc.KeysCall;
+import replica.rpc.LeavesCall;
+import replica.rpc.LogCall;
+import replica.rpc.LogReply;
+import replica.rpc.MutationMsg;
+import replica.rpc.MutationsCall;
+import replica.rpc.PutCall;
+import replica.rpc.ReplicaServiceGrpc;
+import replica.rpc.ScanCall;
+import replica.rpc.StateCall;
+import replica.rpc.SyncCall;
+import replica.rpc.TreeReply;
+import replica.rpc.ValueReply;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PrimaryAPI and ReplicaControl over the gRPC ReplicaService, so callers can
+ * use a replica the same way whichever transport reaches it.
+ *
+ * Failures map onto what the RMI stub would throw: a replica that cannot be
+ * reached, or that reports a RemoteException of its own, gives a
+ * RemoteException; bad arguments and bugs on the replica surface as the
+ * matching unchecked exceptions. Short calls have a deadline, so a replica
+ * that hangs rather than refusing connections also gives a RemoteException.
+ * Calls that run as long as the work they start (syncFrom, client writes,
+ * promotion) have none: every step of that work is a deadline-bound call of
+ * the replica's own, and keepalive pings fail the call if the replica itself
+ * stops answering. Two clients are equal if they name the same replica.
+ */
+final class GrpcReplicaClient implements PrimaryAPI, ReplicaControl {
+
+    private final String name;
+    private final ManagedChannel channel;
+    private final ReplicaServiceGrpc.ReplicaServiceBlockingStub stub;
+
+    // longest a short call may take; see longCall for the rest
+    private final long deadlineMillis;
+
+    // how often an idle channel with a call in flight is pinged, and how long
+    // a ping may go unanswered before the call fails
+    private static final long KEEPALIVE_MILLIS = 20_000;
+
+    GrpcReplicaClient(String name, String host, int port, long deadlineMillis) {
+        this.name = name;
+        this.deadlineMillis = deadlineMillis;
+        this.channel = ManagedChannelBuilder.forAddress(host, port)
+                .usePlaintext()
+                // Full state pushes and state chunks can be large; RMI has no limit either.
+                .maxInboundMessageSize(Integer.MAX_VALUE)
+                .keepAliveTime(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS)
+                .keepAliveTimeout(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS)
+                .build();
+        this.stub = ReplicaServiceGrpc.newBlockingStub(channel);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /*========== PrimaryAPI ==========*/
+
+    @Override
+    public boolean handleClientPut(String key, String value) throws RemoteException {
+        return handleClientPut(key, value, null);
+    }
+
+    @Override
+    public boolean handleClientPut(String key, String value, AckPolicy policy) throws RemoteException {
+        PutCall.Builder req = PutCall.newBuilder().setKey(key).setValue(value);
+        if (policy != null) {
+            req.setPolicy(policy.name());
+        }
+        return longCall("handleClientPut", s -> s.put(req.build()).getValue());
+    }
+
+    @Override
+    public String handleClientGet(String key) throws RemoteException {
+        ValueReply reply = call("handleClientGet", s -> s.get(KeyCall.newBuilder().setKey(key).build()));
+        return reply.hasValue() ? reply.getValue() : null;
+    }
+
+    @Override
+    public boolean handleClientBatchPut(Map<String,String> entries, AckPolicy policy) throws RemoteException {
+        BatchPutCall.Builder req = BatchPutCall.newBuilder().addAllEntries(toEntries(entries));
+        if (policy != null) {
+            req.setPolicy(policy.name());
+        }
+        return longCall("handleClientBatchPut", s -> s.batchPut(req.build()).getValue());
+    }
+
+    @Override
+    public Map<String,String> handleClientMultiGet(List<String> keys) throws RemoteException {
+        KeysCall req = KeysCall.newBuilder().addAllKeys(keys).build();
+        return toMap(call("handleClientMultiGet", s -> s.multiGet(req)).getEntriesList());
+    }
+
+    @Override
+    public LinkedHashMap<String,String> handleClientScan(String fromKey, boolean fromInclusive,
+                                                         String toKey, int limit) throws RemoteException {
+        ScanCall.Builder req = ScanCall.newBuilder().setFromInclusive(fromInclusive).setLimit(limit);
+        if (fromKey != null) {
+            req.setFromKey(fromKey);
+        }
+        if (toKey != null) {
+            req.setToKey(toKey);
+        }
+        return toMap(call("handleClientScan", s -> s.scan(req.build())).getEntriesList());
+    }
+
+    @Override
+    public Map<String,String> getState() throws RemoteException {
+        return toMap(call("getState", s -> s.getState(Empty.getDefaultInstance())).getEntriesList());
+    }
+
+    /*========== ReplicaControl ==========*/
+
+    @Override
+    public void pushFullState(Map<String,String> newState) throws RemoteException {
+        StateCall req = StateCall.newBuilder().addAllEntries(toEntries(newState)).build();
+        call("pushFullState", s -> s.pushFullState(req));
+    }
+
+    @Override
+    public void pushFullState(Map<String,String> newState, long seq) throws RemoteException {
+        StateCall req = StateCall.newBuilder().addAllEntries(toEntries(newState)).setSeq(seq).build();
+        call("pushFullState", s -> s.pushFullState(req));
+    }
+
+    @Override
+    public void pushEncodedState(byte[] encodedState) throws RemoteException {
+        call("pushEncodedState", s -> s.pushEncodedState(blob(encodedState)));
+    }
+
+    @Override
+    public long applyDeltas(List<Mutation> mutations) throws RemoteException {
+        MutationsCall req = MutationsCall.newBuilder().addAllMutations(toMessages(mutations)).build();
+        return call("applyDeltas", s -> s.applyDeltas(req).getSeq());
+    }
+
+    @Override
+    public long applyEncodedDeltas(byte[] encodedMutations) throws RemoteException {
+        return call("applyEncodedDeltas", s -> s.applyEncodedDeltas(blob(encodedMutations)).getSeq());
+    }
+
+    @Override
+    public Compression negotiateCompression(Compression offered) throws RemoteException {
+        CompressionCall req = CompressionCall.newBuilder().setCompression(offered.name()).build();
+        return Compression.parse(call("negotiateCompression", s -> s.negotiateCompression(req)).getCompression());
+    }
+
+    @Override
+    public void promoteToPrimary() throws RemoteException {
+        longCall("promoteToPrimary", s -> s.promoteToPrimary(Empty.getDefaultInstance()));
+    }
+
+    @Override
+    public long getLastAppliedSeq() throws RemoteException {
+        return call("getLastAppliedSeq", s -> s.getLastAppliedSeq(Empty.getDefaultInstance()).getSeq());
+    }
+
+    @Override
+    public boolean ping() throws RemoteException {
+        return call("ping", s -> s.ping(Empty.getDefaultInstance()).getValue());
+    }
+
+    @Override
+    public StateChunk readStateChunk(String afterKey, int maxEntries) throws RemoteException {
+        ChunkCall.Builder req = ChunkCall.newBuilder().setMaxEntries(maxEntries);
+        if (afterKey != null) {
+            req.setAfterKey(afterKey);
+        }
+        ChunkReply reply = call("readStateChunk", s -> s.readStateChunk(req.build()));
+        return new StateChunk(reply.getSeq(), toMap(reply.getEntriesList()), reply.getLast());
+    }
+
+    @Override
+    public byte[] readEncodedStateChunk(String afterKey, int maxEntries, Compression compression)
+            throws RemoteException {
+        ChunkCall.Builder req = ChunkCall.newBuilder().setMaxEntries(maxEntries).setCompression(compression.name());
+        if (afterKey != null) {
+            req.setAfterKey(afterKey);
+        }
+        return call("readEncodedStateChunk", s -> s.readEncodedStateChunk(req.build())).getData().toByteArray();
+    }
+
+    @Override
+    public List<Mutation> readLogSince(long afterSeq, int maxMutations) throws RemoteException {
+        LogCall req = LogCall.newBuilder().setAfterSeq(afterSeq).setMaxMutations(maxMutations).build();
+        LogReply reply = call("readLogSince", s -> s.readLogSince(req));
+        return reply.getTruncated() ? null : fromMessages(reply.getMutationsList());
+    }
+
+    @Override
+    public MerkleTree readMerkleTree() throws RemoteException {
+        TreeReply reply = call("readMerkleTree", s -> s.readMerkleTree(Empty.getDefaultInstance()));
+        long[] nodes = new long[reply.getNodesCount()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = reply.getNodes(i);
+        }
+        return MerkleTree.of(reply.getSeq(), nodes);
+    }
+
+    @Override
+    public Map<String,Long> readLeafHashes(int[] leaves) throws RemoteException {
+        LeavesCall.Builder req = LeavesCall.newBuilder();
+        for (int leaf : leaves) {
+            req.addLeaves(leaf);
+        }
+        return call("readLeafHashes", s -> s.readLeafHashes(req.build())).getHashesMap();
+    }
+
+    @Override
+    public void syncFrom(ReplicaControl source) throws RemoteException {
+        if (!(source instanceof GrpcReplicaClient)) {
+            throw new IllegalArgumentException("syncFrom over gRPC needs a source reached over gRPC, got " + source);
+        }
+        SyncCall req = SyncCall.newBuilder().setSource(((GrpcReplicaClient) source).name).build();
+        longCall("syncFrom", s -> s.syncFrom(req));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GrpcReplicaClient && name.equals(((GrpcReplicaClient) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "GrpcReplicaClient{" + name + " at " + channel.authority() + "}";
+    }
+
+    // ========== Helpers ==========
+
+    private interface RpcCall<T> {
+        T run(ReplicaServiceGrpc.ReplicaServiceBlockingStub stub);
+    }
+
+    private <T> T call(String op, RpcCall<T> rpc) throws RemoteException {
+        // Deadlines are absolute, so each call gets a fresh one.
+        return run(op, rpc, stub.withDeadlineAfter(deadlineMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A call with no deadline, for work whose length has no useful bound: an
+     * ALL write waits on every backup's pipeline, a state transfer on every
+     * page. Each step of it is bounded on the replica, and keepalive covers
+     * the replica itself hanging. If the call fails anyway, the replica sees
+     * it cancelled; a state transfer then stops at its next page.
+     */
+    private <T> T longCall(String op, RpcCall<T> rpc) throws RemoteException {
+        return run(op, rpc, stub);
+    }
+
+    private <T> T run(String op, RpcCall<T> rpc, ReplicaServiceGrpc.ReplicaServiceBlockingStub s)
+            throws RemoteException {
+        try {
+            return rpc.run(s);
+        } catch (StatusRuntimeException e) {
+            Status status = e.getStatus();
+            if (status.getCode() == Status.Code.INVALID_ARGUMENT) {
+                throw new IllegalArgumentException(status.getDescription(), e);
+            }
+            if (status.getCode() == Status.Code.INTERNAL) {
+                throw new IllegalStateException(op + " failed on " + name + ": " + status.getDescription(), e);
+            }
+            if (status.getCode() == Status.Code.UNAVAILABLE) {
+                // Try to connect again on the next call rather than after the channel's
+                // backoff (up to two minutes), so a restarted replica is seen at once.
+                channel.resetConnectBackoff();
+            }
+            // UNAVAILABLE, DEADLINE_EXCEEDED and the rest: the replica may be down or hung.
+            throw new RemoteException(op + " on " + name + " failed: " + status, e);
+        }
+    }
+
+    // wraps without copying; callers do not modify the array afterwards
+    private static Blob blob(byte[] data) {
+        return Blob.newBuilder().setData(UnsafeByteOperations.unsafeWrap(data)).build();
+    }
+
+    static List<Entry> toEntries(Map<String,String> map) {
+        List<Entry> entries = new ArrayList<>(map.size());
+        for (Map.Entry<String,String> e : map.entrySet()) {
+            entries.add(Entry.newBuilder().setKey(e.getKey()).setValue(e.getValue()).build());
+        }
+        return entries;
+    }
+
+    // keeps the order of entries
+    static LinkedHashMap<String,String> toMap(List<Entry> entries) {
+        LinkedHashMap<String,String> map = new LinkedHashMap<>(entries.size() * 4 / 3 + 1);
+        for (Entry e : entries) {
+            map.put(e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    static List<MutationMsg> toMessages(List<Mutation> mutations) {
+        List<MutationMsg> messages = new ArrayList<>(mutations.size());
+        for (Mutation m : mutations) {
+            messages.add(MutationMsg.newBuilder().setSeq(m.getSeq()).setKey(m.getKey()).setValue(m.getValue()).build());
+        }
+        return messages;
+    }
+
+    static List<Mutation> fromMessages(List<MutationMsg> messages) {
+        List<Mutation> mutations = new ArrayList<>(messages.size());
+        for (MutationMsg m : messages) {
+            mutations.add(new Mutation(m.getSeq(), m.getKey(), m.getValue()));
+        }
+        return mutations;
+    }
+}
@@ -0,0 +1,255 @@
+package replica;
+
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import replica.rpc.BatchPutCall;
+import replica.rpc.Blob;
+import replica.rpc.BoolReply;
+import replica.rpc.ChunkCall;
+import replica.rpc.ChunkReply;
+import replica.rpc.CompressionCall;
+import replica.rpc.Empty;
+import replica.rpc.EntriesReply;
+import replica.rpc.KeyCall;
+import replica.rpc.KeysCall;
+import replica.rpc.LeafHashesReply;
+import replica.rpc.LeavesCall;
+import replica.rpc.LogCall;
+import replica.rpc.LogReply;
+import replica.rpc.MutationsCall;
+import replica.rpc.PutCall;
+import replica.rpc.ReplicaServiceGrpc;
+import replica.rpc.ScanCall;
+import replica.rpc.SeqReply;
+import replica.rpc.StateCall;
+import replica.rpc.SyncCall;
+import replica.rpc.TreeReply;
+import replica.rpc.ValueReply;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves a replica's PrimaryAPI and ReplicaControl methods over gRPC, for
+ * replicas started with --transport=grpc. Each call is a thin translation to
+ * the same ReplicaImpl method RMI would invoke.
+ *
+ * A RemoteException thrown by the replica becomes UNAVAILABLE, so the client
+ * side throws a RemoteException again; IllegalArgumentException becomes
+ * INVALID_ARGUMENT and any other runtime exception INTERNAL.
+ */
+public class GrpcReplicaService extends ReplicaServiceGrpc.ReplicaServiceImplBase {
+
+    private final ReplicaImpl replica;
+
+    // resolves the source named in SyncFrom calls
+    private final ReplicaTransport transport;
+
+    public GrpcReplicaService(ReplicaImpl replica, ReplicaTransport transport) {
+        this.replica = replica;
+        this.transport = transport;
+    }
+
+    /*========== PrimaryAPI ==========*/
+
+    @Override
+    public void put(PutCall req, StreamObserver<BoolReply> out) {
+        serve(out, () -> bool(replica.handleClientPut(req.getKey(), req.getValue(),
+                req.hasPolicy() ? AckPolicy.parse(req.getPolicy()) : null)));
+    }
+
+    @Override
+    public void batchPut(BatchPutCall req, StreamObserver<BoolReply> out) {
+        serve(out, () -> bool(replica.handleClientBatchPut(GrpcReplicaClient.toMap(req.getEntriesList()),
+                req.hasPolicy() ? AckPolicy.parse(req.getPolicy()) : null)));
+    }
+
+    @Override
+    public void get(KeyCall req, StreamObserver<ValueReply> out) {
+        serve(out, () -> {
+            String value = replica.handleClientGet(req.getKey());
+            return (value == null) ? ValueReply.getDefaultInstance() : ValueReply.newBuilder().setValue(value).build();
+        });
+    }
+
+    @Override
+    public void multiGet(KeysCall req, StreamObserver<EntriesReply> out) {
+        serve(out, () -> entries(replica.handleClientMultiGet(req.getKeysList())));
+    }
+
+    @Override
+    public void scan(ScanCall req, StreamObserver<EntriesReply> out) {
+        serve(out, () -> entries(replica.handleClientScan(
+                req.hasFromKey() ? req.getFromKey() : null, req.getFromInclusive(),
+                req.hasToKey() ? req.getToKey() : null, req.getLimit())));
+    }
+
+    @Override
+    public void getState(Empty req, StreamObserver<EntriesReply> out) {
+        serve(out, () -> entries(replica.getState()));
+    }
+
+    /*========== ReplicaControl ==========*/
+
+    @Override
+    public void pushFullState(StateCall req, StreamObserver<Empty> out) {
+        serve(out, () -> {
+            Map<String,String> state = GrpcReplicaClient.toMap(req.getEntriesList());
+            if (req.hasSeq()) {
+                replica.pushFullState(state, req.getSeq());
+            } else {
+                replica.pushFullState(state);
+            }
+            return Empty.getDefaultInstance();
+        });
+    }
+
+    @Override
+    public void pushEncodedState(Blob req, StreamObserver<Empty> out) {
+        serve(out, () -> {
+            replica.pushEncodedState(req.getData().toByteArray());
+            return Empty.getDefaultInstance();
+        });
+    }
+
+    @Override
+    public void applyEncodedDeltas(Blob req, StreamObserver<SeqReply> out) {
+        serve(out, () -> seq(replica.applyEncodedDeltas(req.getData().toByteArray())));
+    }
+
+    @Override
+    public void applyDeltas(MutationsCall req, StreamObserver<SeqReply> out) {
+        serve(out, () -> seq(replica.applyDeltas(GrpcReplicaClient.fromMessages(req.getMutationsList()))));
+    }
+
+    @Override
+    public void negotiateCompression(CompressionCall req, StreamObserver<CompressionCall> out) {
+        serve(out, () -> {
+            Compression agreed = replica.negotiateCompression(Compression.parse(req.getCompression()));
+            return CompressionCall.newBuilder().setCompression(agreed.name()).build();
+        });
+    }
+
+    @Override
+    public void promoteToPrimary(Empty req, StreamObserver<Empty> out) {
+        serve(out, () -> {
+            replica.promoteToPrimary();
+            return Empty.getDefaultInstance();
+        });
+    }
+
+    @Override
+    public void getLastAppliedSeq(Empty req, StreamObserver<SeqReply> out) {
+        serve(out, () -> seq(replica.getLastAppliedSeq()));
+    }
+
+    @Override
+    public void ping(Empty req, StreamObserver<BoolReply> out) {
+        serve(out, () -> bool(replica.ping()));
+    }
+
+    @Override
+    public void readStateChunk(ChunkCall req, StreamObserver<ChunkReply> out) {
+        serve(out, () -> {
+            StateChunk chunk = replica.readStateChunk(req.hasAfterKey() ? req.getAfterKey() : null,
+                    req.getMaxEntries());
+            return ChunkReply.newBuilder()
+                    .setSeq(chunk.getSeq())
+                    .addAllEntries(GrpcReplicaClient.toEntries(chunk.getEntries()))
+                    .setLast(chunk.isLast())
+                    .build();
+        });
+    }
+
+    @Override
+    public void readEncodedStateChunk(ChunkCall req, StreamObserver<Blob> out) {
+        serve(out, () -> {
+            byte[] chunk = replica.readEncodedStateChunk(req.hasAfterKey() ? req.getAfterKey() : null,
+                    req.getMaxEntries(),
+                    req.hasCompression() ? Compression.parse(req.getCompression()) : Compression.NONE);
+            return Blob.newBuilder().setData(UnsafeByteOperations.unsafeWrap(chunk)).build();
+        });
+    }
+
+    @Override
+    public void readLogSince(LogCall req, StreamObserver<LogReply> out) {
+        serve(out, () -> {
+            List<Mutation> tail = replica.readLogSince(req.getAfterSeq(), req.getMaxMutations());
+            if (tail == null) {
+                return LogReply.newBuilder().setTruncated(true).build();
+            }
+            return LogReply.newBuilder().addAllMutations(GrpcReplicaClient.toMessages(tail)).build();
+        });
+    }
+
+    @Override
+    public void readMerkleTree(Empty req, StreamObserver<TreeReply> out) {
+        serve(out, () -> {
+            MerkleTree tree = replica.readMerkleTree();
+            TreeReply.Builder reply = TreeReply.newBuilder().setSeq(tree.getSeq());
+            for (long node : tree.getNodes()) {
+                reply.addNodes(node);
+            }
+            return reply.build();
+        });
+    }
+
+    @Override
+    public void readLeafHashes(LeavesCall req, StreamObserver<LeafHashesReply> out) {
+        serve(out, () -> {
+            int[] leaves = req.getLeavesList().stream().mapToInt(Integer::intValue).toArray();
+            return LeafHashesReply.newBuilder().putAllHashes(replica.readLeafHashes(leaves)).build();
+        });
+    }
+
+    @Override
+    public void syncFrom(SyncCall req, StreamObserver<Empty> out) {
+        // The caller sets no deadline on this call; if it gives up or its
+        // connection drops, the call's context is cancelled and the transfer
+        // stops at its next page rather than holding the replica's transfer lock.
+        Context context = Context.current();
+        serve(out, () -> {
+            replica.syncFrom(transport.connect(req.getSource()), context::isCancelled);
+            return Empty.getDefaultInstance();
+        });
+    }
+
+    // ========== Helpers ==========
+
+    private interface Handler<T> {
+        T handle() throws RemoteException;
+    }
+
+    private static <T> void serve(StreamObserver<T> out, Handler<T> handler) {
+        T reply;
+        try {
+            reply = handler.handle();
+        } catch (RemoteException e) {
+            out.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+            return;
+        } catch (IllegalArgumentException e) {
+            out.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).withCause(e).asRuntimeException());
+            return;
+        } catch (RuntimeException e) {
+            out.onError(Status.INTERNAL.withDescription(String.valueOf(e)).withCause(e).asRuntimeException());
+            return;
+        }
+        out.onNext(reply);
+        out.onCompleted();
+    }
+
+    private static BoolReply bool(boolean value) {
+        return BoolReply.newBuilder().setValue(value).build();
+    }
+
+    private static SeqReply seq(long seq) {
+        return SeqReply.newBuilder().setSeq(seq).build();
+    }
+
+    private static EntriesReply entries(Map<String,String> map) {
+        return EntriesReply.newBuilder().addAllEntries(GrpcReplicaClient.toEntries(map)).build();
+    }
+}
@@ -0,0 +1,127 @@
+package replica;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash tree over a replica's store, used by anti-entropy to find where two
+ * replicas differ without shipping their contents.
+ *
+ * Keys are spread over LEAVES fixed buckets by hash, so every replica puts a
+ * key in the same leaf whatever else it holds. A leaf's digest is the sum of
+ * its entries' hashes: it does not depend on iteration order and is built in
+ * one pass over the store. Inner nodes hash their two children, so comparing
+ * two trees skips every subtree whose root matches.
+ *
+ * Stored heap-style: node 1 is the root, node i has children 2i and 2i+1,
+ * and leaf b is node LEAVES + b.
+ */
+public final class MerkleTree implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int LEAVES = 1024;
+
+    private final long seq;
+    private final long[] nodes;
+
+    /**
+     * Empty tree for a store at seq; add() its entries, then seal().
+     */
+    public MerkleTree(long seq) {
+        this(seq, new long[2 * LEAVES]);
+    }
+
+    private MerkleTree(long seq, long[] nodes) {
+        this.seq = seq;
+        this.nodes = nodes;
+    }
+
+    /**
+     * A sealed tree rebuilt from the nodes of another one, e.g. received over gRPC.
+     */
+    public static MerkleTree of(long seq, long[] nodes) {
+        if (nodes.length != 2 * LEAVES) {
+            throw new IllegalArgumentException("expected " + 2 * LEAVES + " nodes, got " + nodes.length);
+        }
+        return new MerkleTree(seq, nodes.clone());
+    }
+
+    // seq of the store when the tree was started; entries are at least this recent
+    public long getSeq() {
+        return seq;
+    }
+
+    // the heap-ordered node array; do not modify
+    public long[] getNodes() {
+        return nodes;
+    }
+
+    public void add(String key, String value) {
+        nodes[LEAVES + leafOf(key)] += entryHash(key, value);
+    }
+
+    /**
+     * Compute the inner nodes from the leaves. Call once, after the last add().
+     */
+    public MerkleTree seal() {
+        for (int i = LEAVES - 1; i >= 1; i--) {
+            nodes[i] = mix(nodes[2 * i] * 0x9E3779B97F4A7C15L + nodes[2 * i + 1]);
+        }
+        return this;
+    }
+
+    /**
+     * Leaves whose digests differ between this tree and other, ascending.
+     */
+    public List<Integer> differingLeaves(MerkleTree other) {
+        List<Integer> leaves = new ArrayList<>();
+        collectDiffering(other, 1, leaves);
+        return leaves;
+    }
+
+    private void collectDiffering(MerkleTree other, int node, List<Integer> out) {
+        if (nodes[node] == other.nodes[node]) {
+            return;
+        }
+        if (node >= LEAVES) {
+            out.add(node - LEAVES);
+            return;
+        }
+        collectDiffering(other, 2 * node, out);
+        collectDiffering(other, 2 * node + 1, out);
+    }
+
+    public static int leafOf(String key) {
+        return (int) (mix(key.hashCode()) & (LEAVES - 1));
+    }
+
+    /**
+     * 64-bit hash of one entry; equal on every replica for equal key and value.
+     */
+    public static long entryHash(String key, String value) {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        // Separator, so ("ab", "c") and ("a", "bc") differ.
+        h = (h ^ 0xFFFF) * 0x100000001b3L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // splitmix64 finaliser
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return "MerkleTree{seq=" + seq + ", root=" + Long.toHexString(nodes[1]) + "}";
+    }
+}
@@ -0,0 +1,57 @@
+package replica;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A single PUT as it travels through the replication stream.
+ * The primary assigns seq; backups apply mutations strictly in seq order.
+ */
+public final class Mutation implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long seq;
+    private final String key;
+    private final String value;
+
+    public Mutation(long seq, String key, String value) {
+        this.seq = seq;
+        this.key = key;
+        this.value = value;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Mutation)) {
+            return false;
+        }
+        Mutation other = (Mutation) o;
+        return seq == other.seq && key.equals(other.key) && value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(seq, key, value);
+    }
+
+    @Override
+    public String toString() {
+        return "Mutation{seq=" + seq + ", key=" + key + "}";
+    }
+}
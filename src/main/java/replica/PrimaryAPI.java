@@ -2,6 +2,8 @@ package replica;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -11,7 +13,25 @@ public interface PrimaryAPI extends Remote {
 
     boolean handleClientPut(String key, String value) throws RemoteException;
 
+    // Same as above, but with an explicit durability level for this write.
+    // A null policy means the replica's configured default.
+    boolean handleClientPut(String key, String value, AckPolicy policy) throws RemoteException;
+
     String handleClientGet(String key) throws RemoteException;
+
+    // Write all entries as one unit: they become visible together and are
+    // replicated in the same batch. A null policy means the configured default.
+    boolean handleClientBatchPut(Map<String,String> entries, AckPolicy policy) throws RemoteException;
+
+    // Read many keys as of the same point in time.
+    // Keys that do not exist are left out of the result.
+    Map<String,String> handleClientMultiGet(List<String> keys) throws RemoteException;
+
+    // One page of a range scan: up to limit entries with keys in [fromKey, toKey),
+    // in key order, read from one snapshot. Pass fromInclusive=false with the last
+    // key of the previous page to continue. Null bounds are open.
+    LinkedHashMap<String,String> handleClientScan(String fromKey, boolean fromInclusive,
+                                                  String toKey, int limit) throws RemoteException;
     
     // Return a snapshot of the current key–value store.
     // Used by the FrontEnd to initialise newly joined replicas.
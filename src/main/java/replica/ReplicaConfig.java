@@ -0,0 +1,197 @@
+package replica;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Tunables for a replica, parsed from ReplicaMain's "--name=value" options.
+ */
+public class ReplicaConfig {
+
+    // default durability level for PUTs that do not ask for one
+    private final AckPolicy ackPolicy;
+
+    // how long the group committer waits for more PUTs before committing a batch
+    private final long batchWindowMillis;
+
+    // upper bound on PUTs committed and replicated together
+    private final int maxBatchSize;
+
+    // how often the backup list is rescanned from the registry
+    private final long membershipRefreshMillis;
+
+    // layout of the replica's key index (see VersionedStore.IndexKind)
+    private final VersionedStore.IndexKind storeIndex;
+
+    // directory for the write-ahead log and snapshots; null keeps the replica memory-only
+    private final Path dataDir;
+
+    // how often a snapshot is taken and the WAL truncated; 0 disables snapshots
+    private final long snapshotIntervalMillis;
+
+    // snapshot file to boot from when the replica has no state of its own; may be null
+    private final Path seedSnapshot;
+
+    // how often the primary compares hash trees with its backups; 0 disables anti-entropy
+    private final long antiEntropyIntervalMillis;
+
+    // how this replica reaches the others, and serves them if it is gRPC
+    private final ReplicaTransport transport;
+
+    // compression for encoded payloads on links where the peer wants it too
+    private final Compression compression;
+
+    // batches the primary keeps in flight to each backup before waiting for acks
+    private final int replicationWindow;
+
+    // batches queued for each backup's sender before further ones are dropped for it
+    private final int replicationQueueCapacity;
+
+    // how often the primary logs its per-backup send queues; 0 disables
+    private final long replicationStatsIntervalMillis;
+
+    public ReplicaConfig(AckPolicy ackPolicy, long batchWindowMillis, int maxBatchSize,
+                         long membershipRefreshMillis, VersionedStore.IndexKind storeIndex,
+                         Path dataDir, long snapshotIntervalMillis, Path seedSnapshot,
+                         long antiEntropyIntervalMillis, ReplicaTransport transport,
+                         Compression compression, int replicationWindow,
+                         int replicationQueueCapacity, long replicationStatsIntervalMillis) {
+        if (batchWindowMillis < 0) {
+            throw new IllegalArgumentException("batch window must not be negative: " + batchWindowMillis);
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive: " + maxBatchSize);
+        }
+        if (membershipRefreshMillis <= 0) {
+            throw new IllegalArgumentException("membership refresh must be positive: " + membershipRefreshMillis);
+        }
+        if (snapshotIntervalMillis < 0) {
+            throw new IllegalArgumentException("snapshot interval must not be negative: " + snapshotIntervalMillis);
+        }
+        if (antiEntropyIntervalMillis < 0) {
+            throw new IllegalArgumentException("anti-entropy interval must not be negative: " + antiEntropyIntervalMillis);
+        }
+        if (replicationWindow <= 0) {
+            throw new IllegalArgumentException("replication window must be positive: " + replicationWindow);
+        }
+        if (replicationQueueCapacity <= 0) {
+            throw new IllegalArgumentException("replication queue must be positive: " + replicationQueueCapacity);
+        }
+        if (replicationStatsIntervalMillis < 0) {
+            throw new IllegalArgumentException("replication stats interval must not be negative: "
+                    + replicationStatsIntervalMillis);
+        }
+        this.ackPolicy = ackPolicy;
+        this.batchWindowMillis = batchWindowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.membershipRefreshMillis = membershipRefreshMillis;
+        this.storeIndex = storeIndex;
+        this.dataDir = dataDir;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.seedSnapshot = seedSnapshot;
+        this.antiEntropyIntervalMillis = antiEntropyIntervalMillis;
+        this.transport = transport;
+        this.compression = compression;
+        this.replicationWindow = replicationWindow;
+        this.replicationQueueCapacity = replicationQueueCapacity;
+        this.replicationStatsIntervalMillis = replicationStatsIntervalMillis;
+    }
+
+    public static ReplicaConfig defaults() {
+        return fromOptions(Collections.emptyMap());
+    }
+
+    public static ReplicaConfig fromOptions(Map<String,String> options) {
+        return new ReplicaConfig(
+                AckPolicy.parse(options.getOrDefault("ack", "all")),
+                Long.parseLong(options.getOrDefault("batch-window-ms", "0")),
+                Integer.parseInt(options.getOrDefault("batch-max", "512")),
+                Long.parseLong(options.getOrDefault("membership-refresh-ms", "2000")),
+                VersionedStore.IndexKind.parse(options.getOrDefault("store-index", "hash")),
+                options.containsKey("data-dir") ? Paths.get(options.get("data-dir")) : null,
+                Long.parseLong(options.getOrDefault("snapshot-interval-ms", "60000")),
+                options.containsKey("seed-snapshot") ? Paths.get(options.get("seed-snapshot")) : null,
+                Long.parseLong(options.getOrDefault("anti-entropy-interval-ms", "300000")),
+                ReplicaTransport.fromOptions(options),
+                Compression.parse(options.getOrDefault("compression", "none")),
+                Integer.parseInt(options.getOrDefault("replication-window", "4")),
+                Integer.parseInt(options.getOrDefault("replication-queue", "256")),
+                Long.parseLong(options.getOrDefault("replication-stats-interval-ms", "0")));
+    }
+
+    public AckPolicy getAckPolicy() {
+        return ackPolicy;
+    }
+
+    public long getBatchWindowMillis() {
+        return batchWindowMillis;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public long getMembershipRefreshMillis() {
+        return membershipRefreshMillis;
+    }
+
+    public VersionedStore.IndexKind getStoreIndex() {
+        return storeIndex;
+    }
+
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    public long getSnapshotIntervalMillis() {
+        return snapshotIntervalMillis;
+    }
+
+    public Path getSeedSnapshot() {
+        return seedSnapshot;
+    }
+
+    public long getAntiEntropyIntervalMillis() {
+        return antiEntropyIntervalMillis;
+    }
+
+    public ReplicaTransport getTransport() {
+        return transport;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getReplicationWindow() {
+        return replicationWindow;
+    }
+
+    public int getReplicationQueueCapacity() {
+        return replicationQueueCapacity;
+    }
+
+    public long getReplicationStatsIntervalMillis() {
+        return replicationStatsIntervalMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ack=" + ackPolicy.name().toLowerCase()
+                + " batch-window-ms=" + batchWindowMillis
+                + " batch-max=" + maxBatchSize
+                + " membership-refresh-ms=" + membershipRefreshMillis
+                + " store-index=" + storeIndex.name().toLowerCase()
+                + " data-dir=" + (dataDir == null ? "none" : dataDir)
+                + " snapshot-interval-ms=" + snapshotIntervalMillis
+                + (seedSnapshot == null ? "" : " seed-snapshot=" + seedSnapshot)
+                + " anti-entropy-interval-ms=" + antiEntropyIntervalMillis
+                + " transport=" + transport
+                + " compression=" + compression.name().toLowerCase()
+                + " replication-window=" + replicationWindow
+                + " replication-queue=" + replicationQueueCapacity
+                + " replication-stats-interval-ms=" + replicationStatsIntervalMillis;
+    }
+}
@@ -2,6 +2,7 @@ package replica;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -11,10 +12,67 @@ public interface ReplicaControl extends Remote {
 
     void pushFullState(Map<String,String> newState) throws RemoteException;
 
+    // Replace the whole store and record that it reflects every mutation up to seq.
+    // Used by the primary when a backup reports a gap in the delta stream.
+    void pushFullState(Map<String,String> newState, long seq) throws RemoteException;
+
+    // pushFullState(newState, seq) with the state in ReplicationCodec's compact
+    // encoding rather than a serialized HashMap. Used by the primary.
+    void pushEncodedState(byte[] encodedState) throws RemoteException;
+
+    // Apply a run of consecutive mutations (oldest first), e.g. the suffix
+    // of the primary's replication log that this backup is missing.
+    // Returns the backup's last applied sequence number afterwards; anything
+    // lower than the run's last seq means the backup saw a gap and needs to be caught up.
+    long applyDeltas(List<Mutation> mutations) throws RemoteException;
+
+    // applyDeltas with the run in ReplicationCodec's compact encoding. The
+    // primary encodes a batch once and sends the same bytes to every backup.
+    long applyEncodedDeltas(byte[] encodedMutations) throws RemoteException;
+
+    // Settle the compression for encoded payloads sent to this replica: offered
+    // if this replica is configured for it too, otherwise NONE. Either way it
+    // decodes both forms; this only decides whether the sender spends the CPU.
+    Compression negotiateCompression(Compression offered) throws RemoteException;
+
     // FrontEnd calls this on failover:
     // "You are now the primary."
     void promoteToPrimary() throws RemoteException;
 
+    // Sequence number of the last mutation applied to this replica's store,
+    // or -1 if unknown (e.g. mid state transfer). The primary asks a backup
+    // that rejoins and resends only what it is missing.
+    long getLastAppliedSeq() throws RemoteException;
+
+    // True if this replica is up and holds a complete state, false while
+    // it is still pulling state from another replica.
     boolean ping() throws RemoteException;
 
-}
\ No newline at end of file
+    // Up to maxEntries entries with keys after afterKey (null: from the first
+    // key), in key order. Served by the primary to replicas pulling its state.
+    StateChunk readStateChunk(String afterKey, int maxEntries) throws RemoteException;
+
+    // readStateChunk in ReplicationCodec's encoding, compressed with compression
+    // if this replica is configured for it too.
+    byte[] readEncodedStateChunk(String afterKey, int maxEntries, Compression compression) throws RemoteException;
+
+    // Up to maxMutations mutations applied after afterSeq, oldest first, from
+    // the replication log; null if the log no longer reaches back that far.
+    List<Mutation> readLogSince(long afterSeq, int maxMutations) throws RemoteException;
+
+    // Hash tree of this replica's store, for anti-entropy. The primary compares
+    // it with its own to find the leaves (hash buckets of keys) that differ.
+    MerkleTree readMerkleTree() throws RemoteException;
+
+    // Hash of every entry (see MerkleTree.entryHash) in the given leaves, by key.
+    Map<String,Long> readLeafHashes(int[] leaves) throws RemoteException;
+
+    // Bring this replica level with source. If its store is an earlier point
+    // of source's history, only the missing mutations are pulled from the
+    // log; otherwise the whole state is copied page by page. The frontend
+    // calls this on replicas that join, the primary on backups too far
+    // behind its log. An interrupted copy resumes where it stopped when
+    // called again with the same source. Returns once the replica is level.
+    void syncFrom(ReplicaControl source) throws RemoteException;
+
+}
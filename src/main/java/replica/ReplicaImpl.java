@@ -1,49 +1,217 @@
 package replica;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 
 public class ReplicaImpl extends UnicastRemoteObject
         implements PrimaryAPI, ReplicaControl {
 
-    // in-memory key-value store
-    private final Map<String,String> store = new HashMap<>();
+    // in-memory key-value store; GETs read the last published epoch without locking
+    private final VersionedStore store;
+
+    // serialises mutations so they reach store (and the log) in seq order;
+    // guards lastAppliedSeq. Reads never take it.
+    private final Object applyLock = new Object();
+
+    // sequence number of the last mutation applied to store
+    // (assigned by the primary, replayed in order by backups)
+    private long lastAppliedSeq = 0;
+
+    // marks a store whose position in the mutation sequence is unknown,
+    // e.g. after a pushFullState without a sequence number
+    private static final long UNKNOWN_SEQ = -1;
+
+    // how many recent mutations to keep for cheap backup catch-up
+    private static final int REPLICATION_LOG_CAPACITY = 100_000;
+
+    // recent mutations applied to store, in seq order
+    private final ReplicationLog log = new ReplicationLog(REPLICATION_LOG_CAPACITY);
+
+    // durable record of the mutations in store; null if no data dir is configured
+    private final WriteAheadLog wal;
+
+    // WAL position covering every mutation applied so far; guarded by applyLock
+    private long walPos = 0;
+
+    // latest snapshot of store; the WAL holds only what came after it.
+    // Null if no data dir is configured.
+    private final Path snapshotFile;
+
+    // serialises snapshot writers (the background snapshotter and full state pushes);
+    // taken after applyLock when both are needed, never before it
+    private final Object snapshotLock = new Object();
+
+    // first WAL segment not covered by the snapshot on disk; guarded by snapshotLock
+    private long snapshotSegment = 0;
+
+    // WAL position when the last snapshot was started; guarded by applyLock
+    private long snapshotWalPos = 0;
+
+    // one snapshot at a time, since store.pin() holds a single epoch
+    private final Object snapshotRunLock = new Object();
+
+    // entries per page when a joining replica pulls state from the primary
+    private static final int STATE_CHUNK_ENTRIES = 4096;
+
+    // consecutive failed page reads tolerated before a state transfer gives up
+    private static final int STATE_TRANSFER_RETRIES = 5;
+
+    // how long a backup holds a batch that overtook an earlier one in flight
+    // before applying what it can and leaving the gap to the primary's resend
+    private static final long REORDER_WAIT_MILLIS = 1000;
+
+    // failed resends of dropped batches in a row before a backup is marked
+    // failed, and the pause after each while the sender has nothing else to do
+    private static final int RESEND_RETRIES = 5;
+    private static final long RESEND_RETRY_MILLIS = 200;
+
+    // false while store is a partial copy being pulled by syncFrom;
+    // such a replica refuses deltas and answers ping() with false
+    private volatile boolean stateComplete = true;
+
+    // progress of the current or interrupted state transfer, so a retry from
+    // the same source resumes where it stopped; guarded by applyLock
+    private ReplicaControl syncSource;
+    private String syncCursor;
+    private long syncStartSeq;
+
+    // source of the last completed state transfer, while store still follows its
+    // history (cleared by a full state push); guarded by applyLock
+    private ReplicaControl syncedFrom;
+
+    // one state transfer at a time
+    private final Object transferLock = new Object();
+
+    // backups we asked to pull our state with syncFrom and that are still at it;
+    // deltas to them would only be refused
+    private final Set<ReplicaControl> transferring = ConcurrentHashMap.newKeySet();
+
+    // compression settled with each backup on first send; dropped when the
+    // backup rejoins, since it may have restarted with other options
+    private final Map<ReplicaControl, Compression> linkCompression = new ConcurrentHashMap<>();
+
+    // per-backup send queues and windows of batches in flight; replaced when the backup rejoins
+    private final Map<ReplicaControl, Pipeline> pipelines = new ConcurrentHashMap<>();
 
     // am I currently the primary?
-    private boolean isPrimary;
+    private volatile boolean isPrimary;
+
+    // set once a WAL write or fsync fails; the WAL refuses every later sync, so
+    // nothing applied from then on is durable here. Clients are turned away.
+    private volatile boolean walFailed;
 
     // my ID for naming (e.g., "1" for name "replica1")
     private final String myId;
 
-    // stubs to the other replicas that act as backups
-    private final List<ReplicaControl> backups;
+    // stubs to the other replicas that act as backups, refreshed in the background
+    private final BackupMembership membership;
+
+    // durability level, batching and other tunables
+    private final ReplicaConfig config;
 
-    // pattern to recognise replica bindings in the registry
-    private static final Pattern REPLICA_NAME = Pattern.compile("^replica\\d+$");
+    // pushes a batch of mutations to all backups concurrently
+    private final ExecutorService fanOut;
 
-    // Names discovered in rmiregistry and found dead to avoid spamming logs
-    private final List<String> ignoredReplicaNames = new ArrayList<>();
+    // batches concurrent PUTs into one replication round
+    private final GroupCommitter committer;
 
     protected ReplicaImpl(String myId,
                           boolean startAsPrimary,
                           List<ReplicaControl> backupsList)
-            throws RemoteException {
+            throws IOException {
+        this(myId, startAsPrimary, backupsList, ReplicaConfig.defaults());
+    }
+
+    protected ReplicaImpl(String myId,
+                          boolean startAsPrimary,
+                          List<ReplicaControl> backupsList,
+                          ReplicaConfig config)
+            throws IOException {
 
         super();
         this.myId = Objects.requireNonNull(myId, "myId");
         this.isPrimary = startAsPrimary;
-        this.backups = new ArrayList<>(backupsList);
+        this.config = Objects.requireNonNull(config, "config");
+        this.store = new VersionedStore(config.getStoreIndex());
+        this.snapshotFile = (config.getDataDir() != null)
+                ? config.getDataDir().resolve("replica" + myId + ".snapshot") : null;
+        this.wal = (config.getDataDir() != null) ? recover(config.getDataDir(), config.getSeedSnapshot()) : null;
+        if (wal == null && config.getSeedSnapshot() != null) {
+            // Memory-only replica: the seed is all the state it starts with.
+            SnapshotFile.Header seed = loadSnapshot(config.getSeedSnapshot());
+            store.publish();
+            log.reset(lastAppliedSeq, seed.last);
+        }
+        this.fanOut = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "replica" + myId + "-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+        this.membership = new BackupMembership(myId, backupsList, config.getMembershipRefreshMillis(),
+                config.getTransport(), this::backupAdded);
+        this.committer = new GroupCommitter("replica" + myId + "-commit",
+                config.getBatchWindowMillis(), config.getMaxBatchSize(), this::commitBatch);
+
+        if (wal != null && config.getSnapshotIntervalMillis() > 0) {
+            ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica" + myId + "-snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = config.getSnapshotIntervalMillis();
+            snapshotter.scheduleWithFixedDelay(this::snapshotQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        if (config.getAntiEntropyIntervalMillis() > 0) {
+            ScheduledExecutorService antiEntropy = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica" + myId + "-anti-entropy");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = config.getAntiEntropyIntervalMillis();
+            antiEntropy.scheduleWithFixedDelay(this::antiEntropyQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        }
+
+        if (config.getReplicationStatsIntervalMillis() > 0) {
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica" + myId + "-replication-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = config.getReplicationStatsIntervalMillis();
+            stats.scheduleWithFixedDelay(this::reportReplicationQueues, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
 
     /*========== PrimaryAPI ==========*/
 
     @Override
-    public synchronized boolean handleClientPut(String key, String value) throws RemoteException {
+    public boolean handleClientPut(String key, String value) throws RemoteException {
+        return handleClientPut(key, value, null);
+    }
+
+    @Override
+    public boolean handleClientPut(String key, String value, AckPolicy policy) throws RemoteException {
+
+        rejectIfWalFailed();
 
         // 1) Check if I am currently the primary. If not, print an error message and return false.
         if (!isPrimary) {
@@ -51,57 +219,168 @@ public class ReplicaImpl extends UnicastRemoteObject
         return false;
         }
 
-        // 2) Update local state (store) by adding the key, value pair.
-        store.put(Objects.requireNonNull(key, "key"), Objects.requireNonNull(value, "value"));
-        
-        // 3) Push full state to backups.
-        // Take a snapshot to avoid concurrent modification issues and to send a consistent view.
-        Map<String,String> snapshot = new HashMap<>(store);
+        // 2) Queue the write for the group committer, which applies it locally
+        // and replicates it together with any other PUTs arriving concurrently.
+        AckPolicy effective = (policy != null) ? policy : config.getAckPolicy();
+        CompletableFuture<Boolean> result = committer.submit(
+                Objects.requireNonNull(key, "key"), Objects.requireNonNull(value, "value"), effective);
 
-        // Discover current backups dynamically
-        List<ReplicaControl> currentBackups = discoverBackups();
-        setBackups(currentBackups);
+        // 3) Wait until the batch holding this write is as durable as requested.
+        return awaitCommit(result);
+    }
 
-        Iterator<ReplicaControl> it = backups.iterator();
-        while (it.hasNext()) {
-            ReplicaControl backup = it.next();
-            try {
-                backup.pushFullState(snapshot);
-            } catch (RemoteException e) {
-                System.err.println("[Replica " + myId + "] WARNING: failed to push state to a backup: " + e);
-                // Skip dead backups.
-                it.remove();
-            }
+    @Override
+    public boolean handleClientBatchPut(Map<String,String> entries, AckPolicy policy) throws RemoteException {
+        rejectIfWalFailed();
+        if (!isPrimary) {
+            System.err.println("[Replica " + myId + "] handleClientBatchPut called but I am NOT PRIMARY. Ignoring.");
+            return false;
+        }
+        if (entries.isEmpty()) {
+            return true;
+        }
+        for (Map.Entry<String,String> e : entries.entrySet()) {
+            Objects.requireNonNull(e.getKey(), "key");
+            Objects.requireNonNull(e.getValue(), "value");
         }
 
-        // 4) Return true (success), if all goes well.
-        return true;
+        AckPolicy effective = (policy != null) ? policy : config.getAckPolicy();
+        return awaitCommit(committer.submit(entries, effective));
+    }
+
+    @Override
+    public Map<String,String> handleClientMultiGet(List<String> keys) throws RemoteException {
+        rejectIfWalFailed();
+        // One snapshot for all keys; LinkedHashMap keeps request order.
+        return store.getAll(keys);
+    }
+
+    @Override
+    public LinkedHashMap<String,String> handleClientScan(String fromKey, boolean fromInclusive,
+                                                         String toKey, int limit) throws RemoteException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        rejectIfWalFailed();
+        return store.scan(fromKey, fromInclusive, toKey, limit);
+    }
+
+    /**
+     * Turn clients away once the WAL has failed. The store may hold writes
+     * that are on no disk here, and every later one would be the same, so
+     * the frontend should fail over to a replica that can persist them.
+     */
+    private void rejectIfWalFailed() throws RemoteException {
+        if (walFailed) {
+            throw new RemoteException("replica" + myId + " can no longer persist writes (write-ahead log failed)");
+        }
+    }
+
+    private boolean awaitCommit(CompletableFuture<Boolean> result) throws RemoteException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for PUT to commit", e);
+        } catch (ExecutionException e) {
+            throw new RemoteException("PUT failed to commit", e.getCause());
+        }
     }
 
     @Override
-    public synchronized String handleClientGet(String key) throws RemoteException {
+    public String handleClientGet(String key) throws RemoteException {
         // 1) Retrieve the value corresponding to the key.
         // 2) Return null if the key does not exist; otherwise, return value.
 
+        rejectIfWalFailed();
         return store.get(key);
     }
 
     @Override
-    public synchronized Map<String,String> getState() throws RemoteException {
-        // Return a copy of the current store
-        return new HashMap<>(store);
+    public Map<String,String> getState() throws RemoteException {
+        // Return a copy of the current store, consistent as of one seq
+        synchronized (applyLock) {
+            return store.snapshot();
+        }
     }
 
 
     /*========== ReplicaControl ==========*/
 
     @Override
-    public synchronized void pushFullState(Map<String,String> newState) throws RemoteException {
-        // Replace the store with the newState
-        store.clear();
-        store.putAll(newState);
+    public void pushFullState(Map<String,String> newState) throws RemoteException {
+        // The sender did not say where this state sits in the sequence,
+        // so the next delta from the primary will trigger a resync.
+        pushFullState(newState, UNKNOWN_SEQ);
+    }
+
+    @Override
+    public void pushFullState(Map<String,String> newState, long seq) throws RemoteException {
+        // Only a newly promoted primary, or the frontend for the current one, pushes
+        // a whole state, so if we still think we are primary we have been replaced.
+        stepDown("received the state of another primary", true);
+        // Replace the store with the newState; readers switch over in one step.
+        synchronized (applyLock) {
+            store.replaceAll(newState);
+            lastAppliedSeq = seq;
+            log.reset(seq);
+            // A pushed state supersedes any state transfer under way.
+            syncSource = null;
+            syncedFrom = null;
+            stateComplete = true;
+            applyLock.notifyAll();
+            if (wal != null) {
+                try {
+                    persistFullState(newState, seq);
+                } catch (IOException e) {
+                    throw new RemoteException("Failed to persist full state", e);
+                }
+            }
+        }
+
+        System.out.println("[Replica " + myId + "] pushFullState applied at seq " + seq
+                + ". Store size: " + store.size());
+    }
+
+    @Override
+    public void pushEncodedState(byte[] encodedState) throws RemoteException {
+        ReplicationCodec.State state = ReplicationCodec.decodeState(encodedState);
+        pushFullState(state.entries, state.seq);
+    }
+
+    @Override
+    public long applyDeltas(List<Mutation> mutations) throws RemoteException {
+        long acked;
+        long durableAt;
+        synchronized (applyLock) {
+            rejectWhilePrimary();
+            rejectWhileTransferring();
+            awaitTurn(mutations);
+            for (Mutation m : mutations) {
+                if (!applyInOrder(m)) {
+                    break;
+                }
+            }
+            // Readers see the applied run all at once.
+            store.publish();
+            // Wake runs that arrived ahead of this one.
+            applyLock.notifyAll();
+            acked = lastAppliedSeq;
+            durableAt = walPos;
+        }
+        // Ack only once the run is on disk; the fsync is shared with concurrent calls.
+        syncWal(durableAt);
+        return acked;
+    }
+
+    @Override
+    public long applyEncodedDeltas(byte[] encodedMutations) throws RemoteException {
+        return applyDeltas(ReplicationCodec.decodeMutations(encodedMutations));
+    }
 
-        System.out.println("[Replica " + myId + "] pushFullState applied. Store now: " + store);
+    @Override
+    public Compression negotiateCompression(Compression offered) throws RemoteException {
+        return Compression.agree(offered, config.getCompression());
     }
 
     @Override
@@ -117,83 +396,1342 @@ public class ReplicaImpl extends UnicastRemoteObject
         isPrimary = true;
 
         // 2) Discover current backups in the RMI registry.
-        List<ReplicaControl> discoveredBackups = discoverBackups();
+        // 3) The membership service caches the discovered list for the write path.
+        List<ReplicaControl> discoveredBackups = membership.refreshNow();
 
-        // 3) Call setBackups(...) with the discovered list.
-        setBackups(discoveredBackups);
+        // Backups may have seen mutations from the old primary that never reached us,
+        // so align them with our store once before streaming deltas again.
+        byte[] snapshot;
+        synchronized (applyLock) {
+            if (lastAppliedSeq == UNKNOWN_SEQ) {
+                lastAppliedSeq = 0;
+                log.reset(0);
+            }
+            snapshot = ReplicationCodec.encodeState(store.snapshot(), lastAppliedSeq);
+        }
+        for (ReplicaControl backup : discoveredBackups) {
+            try {
+                backup.pushEncodedState(ReplicationCodec.compress(snapshot, compressionFor(backup)));
+            } catch (RemoteException e) {
+                System.err.println("[Replica " + myId + "] WARNING: failed to sync a backup after promotion: " + e);
+                membership.markFailed(backup);
+            }
+        }
 
         // 4) Log useful information.
         System.out.println("[Replica " + myId + "] PROMOTED TO PRIMARY.");
         System.out.println("[Replica " + myId + "] Current backups count = " + discoveredBackups.size());
     }
 
+    @Override
+    public long getLastAppliedSeq() throws RemoteException {
+        synchronized (applyLock) {
+            return stateComplete ? lastAppliedSeq : UNKNOWN_SEQ;
+        }
+    }
+
     @Override
     public boolean ping() throws RemoteException {
-        return true;
+        // A half-copied replica is alive but must not be used as a backup yet.
+        return stateComplete;
+    }
+
+    @Override
+    public StateChunk readStateChunk(String afterKey, int maxEntries) throws RemoteException {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        if (!stateComplete) {
+            throw new RemoteException("replica" + myId + " is itself still receiving state");
+        }
+        // Take seq first: the page read below is at least this recent.
+        long seq;
+        synchronized (applyLock) {
+            seq = lastAppliedSeq;
+        }
+        LinkedHashMap<String,String> entries = store.scan(afterKey, false, null, maxEntries);
+        return new StateChunk(seq, entries, entries.size() < maxEntries);
+    }
+
+    @Override
+    public byte[] readEncodedStateChunk(String afterKey, int maxEntries, Compression compression)
+            throws RemoteException {
+        byte[] encoded = ReplicationCodec.encodeChunk(readStateChunk(afterKey, maxEntries));
+        return ReplicationCodec.compress(encoded, Compression.agree(compression, config.getCompression()));
+    }
+
+    @Override
+    public List<Mutation> readLogSince(long afterSeq, int maxMutations) throws RemoteException {
+        if (maxMutations <= 0) {
+            throw new IllegalArgumentException("maxMutations must be positive: " + maxMutations);
+        }
+        return log.since(afterSeq, maxMutations);
+    }
+
+    @Override
+    public MerkleTree readMerkleTree() throws RemoteException {
+        rejectWhileTransferring();
+        return buildMerkleTree();
+    }
+
+    @Override
+    public Map<String,Long> readLeafHashes(int[] leaves) throws RemoteException {
+        rejectWhileTransferring();
+        return leafHashes(leaves);
+    }
+
+    @Override
+    public void syncFrom(ReplicaControl source) throws RemoteException {
+        syncFrom(source, () -> false);
+    }
+
+    /**
+     * syncFrom for a caller that can go away mid-transfer: once cancelled says
+     * so, the copy stops before its next page and releases transferLock, keeping
+     * its cursor so that the next call with the same source resumes from there.
+     */
+    void syncFrom(ReplicaControl source, BooleanSupplier cancelled) throws RemoteException {
+        synchronized (transferLock) {
+            if (catchUpInPlace(source)) {
+                return;
+            }
+            boolean resume;
+            synchronized (applyLock) {
+                resume = !stateComplete && source.equals(syncSource);
+                if (!resume) {
+                    // Start over from an empty store; disk keeps the old state until the copy is done.
+                    stateComplete = false;
+                    syncSource = source;
+                    syncCursor = null;
+                    syncStartSeq = UNKNOWN_SEQ;
+                    syncedFrom = null;
+                    store.replaceAll(Collections.emptyMap());
+                    lastAppliedSeq = UNKNOWN_SEQ;
+                    log.reset(UNKNOWN_SEQ);
+                }
+            }
+            System.out.println("[Replica " + myId + "] " + (resume ? "Resuming" : "Starting")
+                    + " state transfer" + (resume ? " after key " + syncCursor : ""));
+
+            long started = System.nanoTime();
+            long copied = 0;
+            boolean done = false;
+            while (!done) {
+                String cursor;
+                synchronized (applyLock) {
+                    cursor = syncCursor;
+                }
+                if (cancelled.getAsBoolean()) {
+                    System.out.println("[Replica " + myId + "] State transfer cancelled by the caller after key "
+                            + cursor + " (" + copied + " entries this call)");
+                    throw new RemoteException("State transfer cancelled after key " + cursor
+                            + "; call syncFrom again to resume");
+                }
+                StateChunk chunk = withRetries("page after key " + cursor,
+                        () -> ReplicationCodec.decodeChunk(source.readEncodedStateChunk(cursor,
+                                STATE_CHUNK_ENTRIES, config.getCompression())));
+
+                synchronized (applyLock) {
+                    if (syncSource != source) {
+                        System.out.println("[Replica " + myId + "] State transfer superseded by a full state push.");
+                        return;
+                    }
+                    if (syncStartSeq == UNKNOWN_SEQ) {
+                        syncStartSeq = chunk.getSeq();
+                    }
+                    for (Map.Entry<String,String> e : chunk.getEntries().entrySet()) {
+                        store.put(e.getKey(), e.getValue());
+                        syncCursor = e.getKey();
+                    }
+                    store.publish();
+                    copied += chunk.getEntries().size();
+
+                    if (chunk.isLast()) {
+                        // The pages are a fuzzy copy, each at least as new as syncStartSeq.
+                        // Replaying the source's mutations after syncStartSeq brings every
+                        // key to its latest value.
+                        lastAppliedSeq = syncStartSeq;
+                        log.reset(syncStartSeq);
+                        snapshotWalPos = -1;
+                        done = true;
+                    }
+                }
+            }
+
+            // The copy follows source's history, so source's mutation at syncStartSeq is
+            // ours too; logging it lets the snapshot below record where we stand.
+            long copiedAt;
+            synchronized (applyLock) {
+                copiedAt = syncStartSeq;
+            }
+            if (copiedAt > 0) {
+                List<Mutation> at = withRetries("log at seq " + copiedAt, () -> source.readLogSince(copiedAt - 1, 1));
+                synchronized (applyLock) {
+                    if (at != null && !at.isEmpty() && lastAppliedSeq == copiedAt && log.lastSeq() == copiedAt) {
+                        log.reset(copiedAt, at.get(0));
+                    }
+                }
+            }
+
+            // Persist the copy before anything is logged on top of it, so the disk
+            // never mixes the old state with mutations meant for the new one.
+            if (wal != null) {
+                try {
+                    takeSnapshot();
+                } catch (IOException e) {
+                    throw new RemoteException("Failed to persist transferred state", e);
+                }
+            }
+
+            catchUpFrom(source);
+            synchronized (applyLock) {
+                syncSource = null;
+                syncedFrom = source;
+                stateComplete = true;
+            }
+            // Pick up what the source logged while we were still refusing its deltas.
+            long seq = catchUpFrom(source);
+            System.out.println("[Replica " + myId + "] State transfer complete: " + copied + " entries in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms, now at seq " + seq);
+        }
     }
 
     // ========== Helpers ==========
 
-    public synchronized void setBackups(List<ReplicaControl> newBackups) {
-        this.backups.clear();
-        this.backups.addAll(newBackups);
+    private interface RemoteRead<T> {
+        T read() throws RemoteException;
+    }
+
+    /**
+     * Run read, retrying with a growing pause on RemoteException. Used by state
+     * transfer, so a brief network blip does not restart the whole copy.
+     */
+    private <T> T withRetries(String what, RemoteRead<T> read) throws RemoteException {
+        for (int failures = 0; ; ) {
+            try {
+                return read.read();
+            } catch (RemoteException e) {
+                if (++failures > STATE_TRANSFER_RETRIES) {
+                    throw new RemoteException("State transfer interrupted reading " + what
+                            + "; call syncFrom again to resume", e);
+                }
+                System.err.println("[Replica " + myId + "] WARNING: state transfer read failed ("
+                        + failures + "/" + STATE_TRANSFER_RETRIES + "), retrying: " + e);
+                pause(200L * failures);
+            }
+        }
+    }
+
+    /**
+     * If store is an earlier point of source's history (we were briefly cut off,
+     * restarted from our data dir, or copied from source before), pull only the mutations we missed from
+     * source's log. Returns false if a full copy is needed instead: our position
+     * is unknown, source's log no longer reaches back to it, or the mutation
+     * source logged at our seq is not the one we applied there, i.e. our history
+     * diverged from source's (say, writes the old primary took before failing).
+     */
+    private boolean catchUpInPlace(ReplicaControl source) throws RemoteException {
+        long seq;
+        Mutation last = null;
+        synchronized (applyLock) {
+            if (!stateComplete || lastAppliedSeq == UNKNOWN_SEQ) {
+                return false;
+            }
+            seq = lastAppliedSeq;
+            if (seq > 0 && !source.equals(syncedFrom)) {
+                last = loggedAt(seq);
+                if (last == null) {
+                    // Our log does not go back to our own last mutation, so we cannot compare.
+                    return false;
+                }
+            }
+        }
+
+        if (last != null) {
+            List<Mutation> theirs = withRetries("log at seq " + seq, () -> source.readLogSince(seq - 1, 1));
+            if (theirs == null || theirs.isEmpty() || !theirs.get(0).equals(last)) {
+                return false;
+            }
+        } else if (withRetries("log after seq " + seq, () -> source.readLogSince(seq, 1)) == null) {
+            // Nothing to compare (empty store, or a copy of source itself), but the log must still reach us.
+            return false;
+        }
+
+        long started = System.nanoTime();
+        long now = catchUpFrom(source);
+        System.out.println("[Replica " + myId + "] Caught up from seq " + seq + " to " + now + " from the log in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms, no state transfer needed");
+        return true;
+    }
+
+    /**
+     * Pull and apply the mutations source logged after our lastAppliedSeq.
+     * If its log no longer reaches back that far, the primary's own catch-up
+     * repairs us on its next write. Returns our seq afterwards.
+     */
+    private long catchUpFrom(ReplicaControl source) throws RemoteException {
+        while (true) {
+            long from;
+            synchronized (applyLock) {
+                from = lastAppliedSeq;
+            }
+            List<Mutation> tail = withRetries("log after seq " + from,
+                    () -> source.readLogSince(from, STATE_CHUNK_ENTRIES));
+            if (tail == null) {
+                System.err.println("[Replica " + myId + "] WARNING: source log no longer covers seq "
+                        + from + "; waiting for a full state push");
+                return from;
+            }
+            if (tail.isEmpty()) {
+                return from;
+            }
+            long acked;
+            long durableAt;
+            synchronized (applyLock) {
+                for (Mutation m : tail) {
+                    if (!applyInOrder(m)) {
+                        break;
+                    }
+                }
+                store.publish();
+                acked = lastAppliedSeq;
+                durableAt = walPos;
+            }
+            syncWal(durableAt);
+            if (acked == from) {
+                // No progress (the source's log moved under us); let the primary take over.
+                return acked;
+            }
+        }
+    }
+
+    // Deltas from another replica that also believes it is primary: neither
+    // side can tell which is current, so neither overwrites the other.
+    private void rejectWhilePrimary() throws RemoteException {
+        if (isPrimary) {
+            throw new RemoteException("replica" + myId + " is primary and does not take deltas from another replica");
+        }
+    }
+
+    /**
+     * Stop acting as primary: later PUTs are refused. With dropQueued, the
+     * batches still queued for backups are dropped rather than sent after a
+     * new primary's; otherwise they still go out.
+     */
+    private void stepDown(String reason, boolean dropQueued) {
+        if (!isPrimary) {
+            return;
+        }
+        isPrimary = false;
+        if (dropQueued) {
+            closeStalePipelines(List.of());
+        }
+        System.out.println("[Replica " + myId + "] Stepping down as primary: " + reason + ".");
+    }
+
+    private void rejectWhileTransferring() throws RemoteException {
+        if (!stateComplete) {
+            throw new RemoteException("replica" + myId + " is receiving a state transfer");
+        }
+    }
+
+    private static void pause(long millis) throws RemoteException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted during state transfer", e);
+        }
+    }
+
+    /**
+     * The primary keeps several batches in flight, so a run can arrive before
+     * the one preceding it. Wait (releasing applyLock) until the runs before it
+     * are applied, for up to REORDER_WAIT_MILLIS; after that the run is applied
+     * as far as it goes and the primary resends the gap from its log.
+     * Caller must hold applyLock.
+     */
+    private void awaitTurn(List<Mutation> mutations) throws RemoteException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        long first = mutations.get(0).getSeq();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REORDER_WAIT_MILLIS);
+        while (lastAppliedSeq != UNKNOWN_SEQ && first > lastAppliedSeq + 1) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(applyLock, left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // A state transfer may have started while we waited.
+        rejectWhileTransferring();
     }
 
-    private List<ReplicaControl> discoverBackups() {
+    /**
+     * Apply m if it is the next mutation in sequence. Duplicates are ignored.
+     * Caller must hold applyLock and publish the store afterwards.
+     * Returns false if m would leave a gap, so the primary must resend.
+     */
+    private boolean applyInOrder(Mutation m) {
+        if (m.getSeq() <= lastAppliedSeq) {
+            // Duplicate of a mutation we already hold.
+            return true;
+        }
+        if (lastAppliedSeq == UNKNOWN_SEQ || m.getSeq() != lastAppliedSeq + 1) {
+            System.err.println("[Replica " + myId + "] Delta gap: at seq " + lastAppliedSeq
+                    + ", received seq " + m.getSeq());
+            return false;
+        }
+
+        store.put(m.getKey(), m.getValue());
+        lastAppliedSeq = m.getSeq();
+        record(m);
+        return true;
+    }
 
-        List<ReplicaControl> result = new ArrayList<>();
+    /**
+     * Add an applied mutation to the replication log and stage it in the WAL.
+     * Caller must hold applyLock.
+     */
+    private void record(Mutation m) {
+        log.append(m);
+        if (wal != null) {
+            walPos = wal.append(m);
+        }
+    }
 
+    private void syncWal(long pos) throws RemoteException {
+        if (wal == null) {
+            return;
+        }
         try {
-            Registry reg = LocateRegistry.getRegistry(); // default host=localhost, port=1099
-            String[] names = reg.list();
+            wal.sync(pos);
+        } catch (IOException e) {
+            walFailed = true;
+            throw new RemoteException("Failed to persist mutations", e);
+        }
+    }
 
-            String myName = "replica" + myId;
+    /**
+     * Rebuild store from the snapshot and WAL under dataDir and open the WAL.
+     * A data dir with no state of its own starts from seed instead, if given.
+     * Runs in the constructor, before the replica is exported to anyone.
+     */
+    private WriteAheadLog recover(Path dataDir, Path seed) throws IOException {
+        String name = "replica" + myId;
+        long firstSegment = 0;
+        long snapshotSeq = 0;
+        Mutation snapshotLast = null;
+        if (Files.exists(snapshotFile)) {
+            SnapshotFile.Header header = loadSnapshot(snapshotFile);
+            snapshotSeq = header.seq;
+            snapshotLast = header.last;
+            firstSegment = header.firstSegment;
+            snapshotSegment = header.firstSegment;
+        } else if (seed != null) {
+            if (WriteAheadLog.exists(dataDir, name)) {
+                System.err.println("[Replica " + myId + "] WARNING: ignoring seed snapshot " + seed
+                        + ", " + dataDir + " already holds a log for this replica");
+            } else {
+                // The seed's segment numbers belong to another replica's log; ours starts empty.
+                // snapshotSeq stays 0 so the seed is written out as our own first snapshot.
+                snapshotLast = loadSnapshot(seed).last;
+            }
+        }
 
-            for (String name : names) {
-                // 1) Query the RMI registry for all bindings whose names match "replica<id>".
-                if (!REPLICA_NAME.matcher(name).matches()) {
-                    continue;
+        // Only the tail written after the snapshot is replayed. It goes back into the
+        // replication log as well, so on rejoining we can show where our history stands
+        // and be caught up from the primary's log instead of copied in full. The
+        // snapshot's own last mutation goes first, in case no tail follows it.
+        log.reset(lastAppliedSeq, snapshotLast);
+        WriteAheadLog opened = WriteAheadLog.open(dataDir, name, firstSegment, (seq, key, value) -> {
+            store.put(key, value);
+            lastAppliedSeq = seq;
+            if (seq != log.lastSeq() + 1) {
+                // A full state push restarted the numbering.
+                log.reset(seq - 1);
+            }
+            log.append(new Mutation(seq, key, value));
+        });
+        store.publish();
+        if (lastAppliedSeq != snapshotSeq) {
+            // Fold the replayed tail into the next snapshot even if nothing new arrives.
+            snapshotWalPos = -1;
+        }
+        System.out.println("[Replica " + myId + "] Recovered " + store.size() + " keys up to seq "
+                + lastAppliedSeq + " from " + dataDir);
+        return opened;
+    }
+
+    /**
+     * The mutation applied at seq, if the replication log still holds it.
+     * Caller must hold applyLock.
+     */
+    private Mutation loggedAt(long seq) {
+        if (seq <= 0) {
+            return null;
+        }
+        List<Mutation> at = log.since(seq - 1, 1);
+        return (at == null || at.isEmpty()) ? null : at.get(0);
+    }
+
+    /**
+     * Load the snapshot at file into the (empty) store. Caller publishes.
+     */
+    private SnapshotFile.Header loadSnapshot(Path file) throws IOException {
+        long started = System.nanoTime();
+        SnapshotFile.Header header = SnapshotFile.read(file, store::put);
+        lastAppliedSeq = header.seq;
+        System.out.println("[Replica " + myId + "] Loaded snapshot at seq " + header.seq + " (" + store.size()
+                + " keys) from " + file + " in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        return header;
+    }
+
+    /**
+     * Write a snapshot of store without holding up writers, then drop the WAL
+     * segments it covers. Skipped if nothing was logged since the last one, or
+     * if the store's seq is unknown, e.g. while state transfer pages are still
+     * arriving: such a store is no point to recover from.
+     */
+    private void takeSnapshot() throws IOException {
+        synchronized (snapshotRunLock) {
+            takeSnapshotLocked();
+        }
+    }
+
+    private void takeSnapshotLocked() throws IOException {
+        long seq;
+        long segment;
+        Mutation last;
+        synchronized (applyLock) {
+            long pos = wal.appendedPosition();
+            if (pos == snapshotWalPos || lastAppliedSeq == UNKNOWN_SEQ) {
+                return;
+            }
+            // Freeze the current epoch and start a fresh segment for what follows it.
+            segment = wal.roll();
+            store.pin();
+            seq = lastAppliedSeq;
+            last = loggedAt(seq);
+            snapshotWalPos = pos;
+        }
+
+        long started = System.nanoTime();
+        try {
+            synchronized (snapshotLock) {
+                if (segment <= snapshotSegment) {
+                    // A full state push wrote a newer snapshot while we waited.
+                    return;
                 }
+                SnapshotFile.write(snapshotFile, seq, segment, last, store.pinnedEntries());
+                snapshotSegment = segment;
+            }
+        } finally {
+            store.unpin();
+        }
+        wal.deleteSegmentsBefore(segment);
 
-                // 2) Skip your own name ("replica" + myId).
-                if (name.equals(myName)) {
-                    continue;
+        System.out.println("[Replica " + myId + "] Snapshot at seq " + seq + " written in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    private void snapshotQuietly() {
+        if (!stateComplete) {
+            // syncFrom snapshots the copy itself once its last page is in.
+            return;
+        }
+        try {
+            takeSnapshot();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[Replica " + myId + "] WARNING: snapshot failed: " + e);
+        }
+    }
+
+    /**
+     * Make newState, just installed by a full state push, the snapshot on disk
+     * and drop the whole WAL before it. Caller must hold applyLock.
+     */
+    private void persistFullState(Map<String,String> newState, long seq) throws IOException {
+        long segment = wal.roll();
+        synchronized (snapshotLock) {
+            // A pushed state comes without the mutation at seq.
+            SnapshotFile.write(snapshotFile, seq, segment, null, newState.entrySet());
+            snapshotSegment = segment;
+        }
+        wal.deleteSegmentsBefore(segment);
+        snapshotWalPos = wal.appendedPosition();
+    }
+
+    /**
+     * Group committer callback: apply a batch of PUTs locally, replicate it as
+     * one unit and release each caller once its durability level is met.
+     */
+    private void commitBatch(List<GroupCommitter.PendingPut> batch) {
+        List<Mutation> mutations = new ArrayList<>(batch.size());
+        long durableAt;
+        synchronized (applyLock) {
+            if (!isPrimary) {
+                for (GroupCommitter.PendingPut p : batch) {
+                    p.result.complete(false);
+                }
+                return;
+            }
+            for (GroupCommitter.PendingPut p : batch) {
+                for (Map.Entry<String,String> e : p.entries.entrySet()) {
+                    store.put(e.getKey(), e.getValue());
+                    Mutation m = new Mutation(++lastAppliedSeq, e.getKey(), e.getValue());
+                    record(m);
+                    mutations.add(m);
                 }
+            }
+            // The whole batch becomes visible to GETs at once.
+            store.publish();
+            durableAt = walPos;
+        }
 
-                // Skip names of dead replicas.
-                synchronized (this) {
-                    if (ignoredReplicaNames.contains(name)) {
-                        continue;
+        AckPolicy strictest = AckPolicy.ASYNC;
+        for (GroupCommitter.PendingPut p : batch) {
+            if (p.policy.compareTo(strictest) < 0) {
+                strictest = p.policy;
+            }
+        }
+
+        // Backups as last seen by the membership service; no registry calls here.
+        List<ReplicaControl> currentBackups = membership.current();
+
+        // Ship to backups first so their round-trips overlap our own fsync.
+        List<CompletableFuture<Boolean>> pushes = startReplication(mutations, currentBackups);
+        boolean durable = true;
+        try {
+            syncWal(durableAt);
+        } catch (RemoteException e) {
+            // The batch is already visible and on its way to the backups, so let their
+            // acks settle it rather than failing the callers. The WAL stays failed:
+            // step down and turn clients away, so the frontend fails over to a
+            // replica that can persist writes instead of us serving ones that cannot be.
+            System.err.println("[Replica " + myId + "] ERROR: batch up to seq " + lastOf(mutations).getSeq()
+                    + " is applied but not durable here: " + e);
+            durable = false;
+            stepDown("the write-ahead log failed", false);
+        }
+
+        // Async writers only needed the local apply, once it is on disk.
+        if (durable) {
+            for (GroupCommitter.PendingPut p : batch) {
+                if (p.policy == AckPolicy.ASYNC) {
+                    p.result.complete(true);
+                }
+            }
+        }
+
+        // Release the callers as acks come in; the commit thread moves on to
+        // the next batch while this one is still in flight.
+        settleAcks(batch, pushes, strictest, lastOf(mutations).getSeq(), durable);
+    }
+
+    /**
+     * Complete the ALL and QUORUM PUTs of batch once the backup acks their
+     * policy needs are in, or false once those can no longer come. The acks
+     * needed are counted on the whole backup group, down backups included,
+     * so losing backups makes PUTs fail rather than need fewer acks. If the
+     * batch is not durable on our own disk, our copy does not count: a QUORUM
+     * needs one more backup ack, and the ASYNC PUTs wait here for one.
+     */
+    private void settleAcks(List<GroupCommitter.PendingPut> batch, List<CompletableFuture<Boolean>> pushes,
+                            AckPolicy strictest, long lastSeq, boolean durable) {
+        int targets = pushes.size();
+        int group = membership.knownBackups();
+        int all = AckPolicy.ALL.requiredAcks(group);
+        int quorum = AckPolicy.QUORUM.requiredAcks(group) + (durable ? 0 : 1);
+        AtomicInteger acks = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        Runnable settle = () -> {
+            int acked = acks.get();
+            int needed = (strictest == AckPolicy.ALL) ? all : (strictest == AckPolicy.QUORUM) ? quorum : 0;
+            if (acked < needed) {
+                System.err.println("[Replica " + myId + "] WARNING: batch up to seq " + lastSeq
+                        + " reached only " + acked + " of the " + needed + " backup acks its " + strictest
+                        + " PUTs need.");
+            }
+            boolean stored = durable || acked > 0;
+            for (GroupCommitter.PendingPut p : batch) {
+                if (p.policy == AckPolicy.QUORUM) {
+                    p.result.complete(acked >= quorum);
+                } else if (p.policy == AckPolicy.ALL) {
+                    p.result.complete(acked >= all && stored);
+                } else {
+                    // Still pending only if our fsync failed; a backup's copy stands in for it.
+                    p.result.complete(stored);
+                }
+            }
+        };
+        if (targets == 0) {
+            settle.run();
+            return;
+        }
+        for (CompletableFuture<Boolean> push : pushes) {
+            push.whenComplete((ok, error) -> {
+                if (error != null) {
+                    System.err.println("[Replica " + myId + "] WARNING: replication task failed: " + error);
+                }
+                if (Boolean.TRUE.equals(ok) && acks.incrementAndGet() == quorum) {
+                    // Quorum writers need not wait for the slower backups.
+                    for (GroupCommitter.PendingPut p : batch) {
+                        if (p.policy == AckPolicy.QUORUM) {
+                            p.result.complete(true);
+                        }
                     }
                 }
+                if (done.incrementAndGet() == targets) {
+                    settle.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queue a batch for every backup's sender. Never blocks; the futures
+     * complete with each backup's ack, or false at once if its queue is full.
+     */
+    private List<CompletableFuture<Boolean>> startReplication(List<Mutation> batch, List<ReplicaControl> targets) {
+        closeStalePipelines(targets);
+        List<CompletableFuture<Boolean>> pushes = new ArrayList<>(targets.size());
+        EncodedBatch encoded = targets.isEmpty() ? null : new EncodedBatch(ReplicationCodec.encodeMutations(batch));
+        for (ReplicaControl backup : targets) {
+            pushes.add(pipelines.computeIfAbsent(backup, Pipeline::new).send(batch, encoded));
+        }
+        return pushes;
+    }
+
+    /**
+     * Stop the senders of backups that left the backup list. A restarted
+     * replica comes back with a new stub and gets a new pipeline.
+     */
+    private void closeStalePipelines(List<ReplicaControl> live) {
+        for (ReplicaControl backup : pipelines.keySet()) {
+            if (!live.contains(backup)) {
+                linkCompression.remove(backup);
+                Pipeline stale = pipelines.remove(backup);
+                if (stale != null) {
+                    stale.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * One backup's replication pipeline. The commit thread appends batches to
+     * a bounded queue and moves on; a sender thread of the backup's own drains
+     * it, keeping up to --replication-window batches sent and not yet
+     * acknowledged. A slow backup therefore fills only its own queue. Once the
+     * queue is full, further batches are dropped for that backup (they count
+     * as not acked by it), but it stays a backup: the sender resends the
+     * dropped batches from the replication log before its next batch or once
+     * the queue drains. Only a backup that cannot be reached, for a batch or
+     * for RESEND_RETRIES resends in a row, is marked failed. Batches may reach
+     * the backup out of order; it holds early ones until their turn.
+     */
+    private final class Pipeline {
+        private final ReplicaControl backup;
+
+        // batches waiting for the sender; depth bounds it, since the queue itself is unbounded
+        private final ConcurrentLinkedQueue<Outgoing> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+
+        // free slots in the window; taken per batch sent, returned on its ack or failure
+        private final Semaphore window = new Semaphore(config.getReplicationWindow());
+
+        // last seq of the newest batch dropped on a full queue and not resent yet
+        private final AtomicLong droppedUpTo = new AtomicLong(UNKNOWN_SEQ);
+
+        // set on the first drop, cleared once the sender empties the queue; one warning per episode
+        private volatile boolean overflowing;
+
+        // for reportReplicationQueues: deepest queue since the last report, and totals
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        // highest seq the backup acknowledged through this pipeline; guarded by this
+        private long ackedSeq = UNKNOWN_SEQ;
+
+        // serializes resends from the log, which call the backup; never held with this
+        private final Object resendLock = new Object();
+
+        // resends that failed in a row; touched only by the sender
+        private int resendFailures;
+
+        private final Thread sender;
+        private volatile boolean closed;
+
+        Pipeline(ReplicaControl backup) {
+            this.backup = backup;
+            this.sender = new Thread(this::sendLoop, "replica" + myId + "-sender-" + membership.nameOf(backup));
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        CompletableFuture<Boolean> send(List<Mutation> batch, EncodedBatch encoded) {
+            CompletableFuture<Boolean> acked = new CompletableFuture<>();
+            if (closed) {
+                // The backup left the list; it is resynced if it comes back.
+                acked.complete(false);
+                return acked;
+            }
+            int queued = depth.incrementAndGet();
+            if (queued > config.getReplicationQueueCapacity()) {
+                depth.decrementAndGet();
+                dropped.incrementAndGet();
+                droppedUpTo.accumulateAndGet(lastOf(batch).getSeq(), Math::max);
+                if (!overflowing) {
+                    overflowing = true;
+                    System.err.println("[Replica " + myId + "] WARNING: replication queue to "
+                            + membership.nameOf(backup) + " is full; it will be caught up from the log.");
+                }
+                acked.complete(false);
+                return acked;
+            }
+            maxDepth.accumulateAndGet(queued, Math::max);
+            queue.offer(new Outgoing(batch, encoded, acked));
+            if (closed) {
+                // close() ran since the check above, and the sender may have
+                // drained the queue before our batch was in it.
+                failQueued();
+            } else {
+                LockSupport.unpark(sender);
+            }
+            return acked;
+        }
+
+        /**
+         * Stop the sender; batches still queued, and any sent here from now
+         * on, complete as not acked. A batch the sender took but has no window
+         * slot for yet is not sent.
+         */
+        void close() {
+            closed = true;
+            sender.interrupt();
+        }
+
+        private void failQueued() {
+            for (Outgoing left; (left = queue.poll()) != null; ) {
+                left.acked.complete(false);
+            }
+        }
 
+        private void sendLoop() {
+            while (!closed) {
+                Outgoing next = queue.poll();
+                if (next == null) {
+                    overflowing = false;
+                    if (droppedUpTo.get() == UNKNOWN_SEQ) {
+                        LockSupport.park(this);
+                    } else if (!resendDropped()) {
+                        // No later batch is coming to trigger the resend; try again shortly.
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(RESEND_RETRY_MILLIS));
+                    }
+                    continue;
+                }
+                depth.decrementAndGet();
+                resendDropped();
                 try {
-                    // 3) For each, look it up, cast to ReplicaControl, and only include if ping() returns true.
-                    ReplicaControl stub = (ReplicaControl) reg.lookup(name);
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    next.acked.complete(false);
+                    break;
+                }
+                if (closed) {
+                    window.release();
+                    next.acked.complete(false);
+                    break;
+                }
+                sent.incrementAndGet();
+                CompletableFuture.supplyAsync(() -> replicateTo(this, next.batch, next.encoded), fanOut)
+                        .whenComplete((ok, error) -> {
+                            window.release();
+                            if (error != null) {
+                                next.acked.completeExceptionally(error);
+                            } else {
+                                next.acked.complete(ok);
+                            }
+                        });
+            }
+            failQueued();
+        }
 
-                    if (stub.ping()) {
-                        result.add(stub);
-                    } else {
-                        // Mark this name as dead to avoid repeated log spam.
-                        synchronized (this) {
-                            ignoredReplicaNames.add(name);
-                        }
+        // Bring the backup past batches dropped on a full queue before sending
+        // later ones, which it would otherwise hold waiting for the gap to fill.
+        // Returns false if the resend failed and is still owed.
+        private boolean resendDropped() {
+            long upTo = droppedUpTo.getAndSet(UNKNOWN_SEQ);
+            if (upTo == UNKNOWN_SEQ || transferring.contains(backup)) {
+                return true;
+            }
+            try {
+                retransmit(upTo);
+                resendFailures = 0;
+                return true;
+            } catch (RemoteException e) {
+                if (closed) {
+                    return true;
+                }
+                droppedUpTo.accumulateAndGet(upTo, Math::max);
+                System.err.println("[Replica " + myId + "] WARNING: failed to resend dropped batches ("
+                        + (resendFailures + 1) + "/" + RESEND_RETRIES + "): " + e);
+                if (++resendFailures < RESEND_RETRIES) {
+                    return false;
+                }
+                // Unreachable rather than slow; skip it until membership sees it
+                // again, which resyncs it.
+                resendFailures = 0;
+                droppedUpTo.set(UNKNOWN_SEQ);
+                membership.markFailed(backup);
+                return true;
+            }
+        }
+
+        synchronized long acked(long seq) {
+            ackedSeq = Math.max(ackedSeq, seq);
+            return ackedSeq;
+        }
+
+        synchronized long ackedSeq() {
+            return ackedSeq;
+        }
+
+        /**
+         * Resend from the log what the backup is missing up to lastSeq. One
+         * resend at a time, and skipped if a resend for a later batch already
+         * covered it. The calls to the backup run outside this pipeline's
+         * monitor, so acks of other batches are not held up behind them.
+         */
+        boolean retransmit(long lastSeq) throws RemoteException {
+            synchronized (resendLock) {
+                long from = ackedSeq();
+                if (from == UNKNOWN_SEQ) {
+                    // Nothing acked through this pipeline yet, e.g. its first batches were dropped.
+                    from = acked(backup.getLastAppliedSeq());
+                }
+                if (from >= lastSeq) {
+                    return true;
+                }
+                if (!catchUp(backup, from, lastSeq)) {
+                    return false;
+                }
+                acked(lastSeq);
+                return true;
+            }
+        }
+    }
+
+    // a batch queued for one backup's sender
+    private static final class Outgoing {
+        final List<Mutation> batch;
+        final EncodedBatch encoded;
+        final CompletableFuture<Boolean> acked;
+
+        Outgoing(List<Mutation> batch, EncodedBatch encoded, CompletableFuture<Boolean> acked) {
+            this.batch = batch;
+            this.encoded = encoded;
+            this.acked = acked;
+        }
+    }
+
+    /**
+     * Log each backup's send queue: depth now and at most since the last
+     * report, batches in flight, sent and dropped on a full queue, and the
+     * last acked seq. Quiet while there is nothing to replicate to.
+     */
+    private void reportReplicationQueues() {
+        if (!isPrimary) {
+            return;
+        }
+        closeStalePipelines(membership.current());
+        for (Pipeline p : pipelines.values()) {
+            long acked = p.ackedSeq();
+            System.out.println("[Replica " + myId + "] Replication queue to " + membership.nameOf(p.backup)
+                    + ": depth " + p.depth.get() + " (max " + p.maxDepth.getAndSet(p.depth.get()) + "), in flight "
+                    + (config.getReplicationWindow() - p.window.availablePermits()) + ", sent " + p.sent.get()
+                    + ", dropped " + p.dropped.get() + ", acked up to seq " + acked);
+        }
+    }
+
+    /**
+     * Ship a batch through a backup's pipeline, resending from the log if it
+     * reports a gap. Runs on the fan-out pool. Returns false if the backup is
+     * unreachable or still pulling our state.
+     */
+    private boolean replicateTo(Pipeline pipeline, List<Mutation> batch, EncodedBatch encoded) {
+        ReplicaControl backup = pipeline.backup;
+        if (transferring.contains(backup)) {
+            return false;
+        }
+        long lastSeq = lastOf(batch).getSeq();
+        try {
+            long acked = backup.applyEncodedDeltas(encoded.forLink(compressionFor(backup)));
+            return pipeline.acked(acked) >= lastSeq || pipeline.retransmit(lastSeq);
+        } catch (RemoteException e) {
+            System.err.println("[Replica " + myId + "] WARNING: failed to push state to a backup: " + e);
+            // Skip dead backups until the membership service sees them again.
+            membership.markFailed(backup);
+            return false;
+        }
+    }
+
+    private static Mutation lastOf(List<Mutation> batch) {
+        return batch.get(batch.size() - 1);
+    }
+
+    /**
+     * A batch encoded once and compressed at most once, shared by the pushes
+     * to every backup whatever each link settled on.
+     */
+    private static final class EncodedBatch {
+        private final byte[] plain;
+        private byte[] deflated;
+
+        EncodedBatch(byte[] plain) {
+            this.plain = plain;
+        }
+
+        synchronized byte[] forLink(Compression compression) {
+            if (compression == Compression.NONE) {
+                return plain;
+            }
+            if (deflated == null) {
+                deflated = ReplicationCodec.compress(plain, compression);
+            }
+            return deflated;
+        }
+    }
+
+    /**
+     * Compression for payloads to backup, asking it on first use.
+     */
+    private Compression compressionFor(ReplicaControl backup) throws RemoteException {
+        if (config.getCompression() == Compression.NONE) {
+            return Compression.NONE;
+        }
+        Compression agreed = linkCompression.get(backup);
+        if (agreed == null) {
+            agreed = backup.negotiateCompression(config.getCompression());
+            linkCompression.put(backup, agreed);
+            System.out.println("[Replica " + myId + "] Compression to a backup: " + agreed.name().toLowerCase());
+        }
+        return agreed;
+    }
+
+    /**
+     * Bring a lagging backup from ackedSeq up to targetSeq by resending the
+     * missing suffix of the replication log. If the log no longer has it, the
+     * backup is told to pull our state in the background and false is returned.
+     */
+    private boolean catchUp(ReplicaControl backup, long ackedSeq, long targetSeq) throws RemoteException {
+        List<Mutation> missing = log.since(ackedSeq);
+        if (missing != null) {
+            System.out.println("[Replica " + myId + "] Backup lagging by " + (targetSeq - ackedSeq)
+                    + " mutations. Resending log suffix.");
+            ackedSeq = backup.applyEncodedDeltas(
+                    ReplicationCodec.compress(ReplicationCodec.encodeMutations(missing), compressionFor(backup)));
+        }
+        if (ackedSeq >= targetSeq) {
+            return true;
+        }
+        System.out.println("[Replica " + myId + "] Backup at seq " + ackedSeq
+                + " cannot catch up from log. Starting a state transfer.");
+        startStateTransfer(backup);
+        return false;
+    }
+
+    /**
+     * Membership callback for a backup that joined or came back after being
+     * unreachable: catch it up now instead of on the next write.
+     */
+    private void backupAdded(ReplicaControl backup) {
+        linkCompression.remove(backup);
+        // Its acks so far may predate a restart; in-flight pushes finish on the old pipeline.
+        Pipeline old = pipelines.remove(backup);
+        if (old != null) {
+            old.close();
+        }
+        if (isPrimary) {
+            fanOut.submit(() -> resync(backup));
+        }
+    }
+
+    /**
+     * Ask backup where it stands and send it what it is missing. A backup
+     * ahead of us is left alone: its extra writes may be ones we should have,
+     * and wiping them is not ours to decide. A backup behind us gets the log
+     * suffix only if the mutation it applied last is the one we logged at that
+     * seq, as in catchUpInPlace; if its history diverged, or we cannot tell,
+     * it pulls our whole state instead.
+     */
+    private void resync(ReplicaControl backup) {
+        try {
+            long acked = backup.getLastAppliedSeq();
+            long target;
+            Mutation own = null;
+            synchronized (applyLock) {
+                target = lastAppliedSeq;
+                if (acked > 0 && acked < target) {
+                    own = loggedAt(acked);
+                }
+            }
+            if (acked > target) {
+                System.err.println("[Replica " + myId + "] WARNING: " + membership.nameOf(backup) + " is at seq "
+                        + acked + ", ahead of us at " + target + "; leaving its state alone.");
+            } else if (acked < target) {
+                if (acked > 0 && !sameHistory(backup, acked, own)) {
+                    System.out.println("[Replica " + myId + "] Backup at seq " + acked
+                            + " does not share our history up to it. Starting a state transfer.");
+                    startStateTransfer(backup);
+                    return;
+                }
+                catchUp(backup, acked, target);
+            }
+        } catch (RemoteException e) {
+            System.err.println("[Replica " + myId + "] WARNING: failed to resync a backup: " + e);
+            membership.markFailed(backup);
+        }
+    }
+
+    /**
+     * True if backup applied own, our logged mutation at seq, as its mutation
+     * at seq. False if either log no longer reaches back to it.
+     */
+    private boolean sameHistory(ReplicaControl backup, long seq, Mutation own) throws RemoteException {
+        if (own == null) {
+            return false;
+        }
+        List<Mutation> theirs = backup.readLogSince(seq - 1, 1);
+        return theirs != null && !theirs.isEmpty() && theirs.get(0).equals(own);
+    }
+
+    /**
+     * Have backup pull our state with syncFrom on the fan-out pool, unless it
+     * is already doing so. It leaves the backup list while the copy runs (it
+     * answers ping() with false) and is resynced when it comes back.
+     */
+    private void startStateTransfer(ReplicaControl backup) {
+        if (!transferring.add(backup)) {
+            return;
+        }
+        fanOut.submit(() -> {
+            try {
+                backup.syncFrom(selfReference());
+            } catch (RemoteException e) {
+                System.err.println("[Replica " + myId + "] WARNING: state transfer to a backup failed: " + e);
+            } finally {
+                transferring.remove(backup);
+                membership.markFailed(backup);
+            }
+        });
+    }
+
+    private void antiEntropyQuietly() {
+        try {
+            antiEntropy();
+        } catch (RuntimeException e) {
+            System.err.println("[Replica " + myId + "] WARNING: anti-entropy pass failed: " + e);
+        }
+    }
+
+    /**
+     * One anti-entropy pass: compare our hash tree with each backup's, fetch
+     * entry hashes for the leaves that differ only, and repair the keys that
+     * really diverged. Keys written since the older of the two trees are left
+     * out, since replication still has them in flight. Leaves holding such
+     * keys are not fetched at all but left to a later, quieter pass, so the
+     * hashes exchanged stay proportional to the real difference under load.
+     * Keys a backup holds and we do not are only reported: there are no
+     * deletes to replicate them with. The pass stops if we step down.
+     */
+    private void antiEntropy() {
+        if (!isPrimary) {
+            return;
+        }
+        Map<ReplicaControl,MerkleTree> trees = new LinkedHashMap<>();
+        for (ReplicaControl backup : membership.current()) {
+            if (!isPrimary) {
+                return;
+            }
+            if (transferring.contains(backup)) {
+                continue;
+            }
+            try {
+                trees.put(backup, backup.readMerkleTree());
+            } catch (RemoteException e) {
+                System.err.println("[Replica " + myId + "] WARNING: anti-entropy could not read a backup's tree: " + e);
+            }
+        }
+        if (trees.isEmpty()) {
+            return;
+        }
+        // Built after theirs, so ours is the newer side of every comparison.
+        MerkleTree mine = buildMerkleTree();
+
+        Set<String> stale = new HashSet<>();
+        for (Map.Entry<ReplicaControl,MerkleTree> e : trees.entrySet()) {
+            if (!isPrimary) {
+                return;
+            }
+            ReplicaControl backup = e.getKey();
+            MerkleTree theirs = e.getValue();
+            List<Integer> leaves = mine.differingLeaves(theirs);
+            if (leaves.isEmpty()) {
+                continue;
+            }
+            long since = Math.min(theirs.getSeq(), mine.getSeq());
+            Set<String> inFlight = keysWrittenAfter(since);
+            if (inFlight == null) {
+                System.err.println("[Replica " + myId + "] Anti-entropy skipped a backup at seq "
+                        + theirs.getSeq() + ": too far behind to tell divergence from lag");
+                continue;
+            }
+            BitSet busy = new BitSet(MerkleTree.LEAVES);
+            for (String key : inFlight) {
+                busy.set(MerkleTree.leafOf(key));
+            }
+            int[] quiet = leaves.stream().mapToInt(Integer::intValue).filter(leaf -> !busy.get(leaf)).toArray();
+            if (quiet.length == 0) {
+                continue;
+            }
+            try {
+                Map<String,Long> theirHashes = backup.readLeafHashes(quiet);
+                Map<String,Long> myHashes = leafHashes(quiet);
+
+                // Keys written while the hashes were read are in flight as well.
+                inFlight = keysWrittenAfter(since);
+                if (inFlight == null) {
+                    continue;
+                }
+
+                int wrong = 0;
+                List<String> extra = new ArrayList<>();
+                Set<String> keys = new HashSet<>(myHashes.keySet());
+                keys.addAll(theirHashes.keySet());
+                for (String key : keys) {
+                    Long ours = myHashes.get(key);
+                    if (inFlight.contains(key) || Objects.equals(ours, theirHashes.get(key))) {
+                        continue;
                     }
-                } catch (Exception e) {
-                    // Mark this name as dead to avoid repeated log spam.
-                    synchronized (this) {
-                        if (!ignoredReplicaNames.contains(name)) {
-                            ignoredReplicaNames.add(name);
-                        }
+                    wrong++;
+                    if (ours == null) {
+                        extra.add(key);
+                    } else {
+                        stale.add(key);
                     }
-                    System.err.println("[Replica " + myId + "] WARNING: could not add backup " + name + ": " + e);
                 }
+                System.out.println("[Replica " + myId + "] Anti-entropy: " + leaves.size() + " of "
+                        + MerkleTree.LEAVES + " leaves differ, " + (leaves.size() - quiet.length)
+                        + " with writes in flight; " + theirHashes.size() + " entry hashes compared, "
+                        + wrong + " keys diverged");
+
+                if (!extra.isEmpty()) {
+                    Collections.sort(extra);
+                    System.err.println("[Replica " + myId + "] WARNING: anti-entropy: " + membership.nameOf(backup)
+                            + " holds " + extra.size() + " keys we do not, left in place: "
+                            + extra.subList(0, Math.min(extra.size(), 10)) + (extra.size() > 10 ? " ..." : ""));
+                }
+            } catch (RemoteException ex) {
+                System.err.println("[Replica " + myId + "] WARNING: anti-entropy with a backup failed: " + ex);
+                membership.markFailed(backup);
+            }
+        }
+        if (!stale.isEmpty()) {
+            reassert(stale);
+        }
+    }
+
+    /**
+     * Keys of the mutations logged after seq, or null if the log no longer reaches back that far.
+     */
+    private Set<String> keysWrittenAfter(long seq) {
+        List<Mutation> recent = log.since(seq);
+        if (recent == null) {
+            return null;
+        }
+        Set<String> keys = new HashSet<>();
+        for (Mutation m : recent) {
+            keys.add(m.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Replicate the current value of each key again as a new mutation, so
+     * backups holding a wrong value converge through the ordinary delta
+     * stream, in order with the writes around it.
+     */
+    private void reassert(Collection<String> keys) {
+        List<Mutation> mutations = new ArrayList<>(keys.size());
+        long durableAt;
+        synchronized (applyLock) {
+            if (!isPrimary) {
+                return;
             }
-        } catch (Exception e) {
-            System.err.println("[Replica " + myId + "] ERROR during discoverBackups: " + e);
+            for (String key : keys) {
+                String value = store.get(key);
+                if (value != null) {
+                    Mutation m = new Mutation(++lastAppliedSeq, key, value);
+                    record(m);
+                    mutations.add(m);
+                }
+            }
+            durableAt = walPos;
         }
-        
-        // 4) Return the list.
-        return result;
+        if (mutations.isEmpty()) {
+            return;
         }
-}
\ No newline at end of file
+        startReplication(mutations, membership.current());
+        try {
+            syncWal(durableAt);
+        } catch (RemoteException e) {
+            System.err.println("[Replica " + myId + "] ERROR: " + e);
+        }
+        System.out.println("[Replica " + myId + "] Anti-entropy re-replicated " + mutations.size() + " keys");
+    }
+
+    /**
+     * This replica as the other replicas reach it, to hand to them as a source.
+     */
+    private ReplicaControl selfReference() {
+        ReplicaTransport transport = config.getTransport();
+        return (transport.getKind() == ReplicaTransport.Kind.RMI) ? this : transport.connect("replica" + myId);
+    }
+
+    private MerkleTree buildMerkleTree() {
+        long seq;
+        synchronized (applyLock) {
+            seq = lastAppliedSeq;
+        }
+        MerkleTree tree = new MerkleTree(seq);
+        store.forEach(tree::add);
+        return tree.seal();
+    }
+
+    private Map<String,Long> leafHashes(int[] leaves) {
+        BitSet wanted = new BitSet(MerkleTree.LEAVES);
+        for (int leaf : leaves) {
+            wanted.set(leaf);
+        }
+        Map<String,Long> hashes = new HashMap<>();
+        store.forEach((key, value) -> {
+            if (wanted.get(MerkleTree.leafOf(key))) {
+                hashes.put(key, MerkleTree.entryHash(key, value));
+            }
+        });
+        return hashes;
+    }
+
+    public void setBackups(List<ReplicaControl> newBackups) {
+        membership.setBackups(newBackups);
+    }
+}
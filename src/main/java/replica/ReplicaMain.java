@@ -1,33 +1,90 @@
 package replica;
 
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Usage:
+ *   mvn -Dexec.mainClass=replica.ReplicaMain \
+ *       -Dexec.args="1 primary 2 3 --ack=quorum" exec:java
+ *
+ * Options (may appear anywhere after the positional args):
+ *   --ack=all|quorum|async   default durability level for PUTs (default: all)
+ *   --batch-window-ms=N      extra time to gather concurrent PUTs into one batch (default: 0)
+ *   --batch-max=N            most PUTs replicated in one batch (default: 512)
+ *   --membership-refresh-ms=N  how often backups are rediscovered (default: 2000)
+ *   --store-index=hash|skiplist  key index layout of the store (default: hash)
+ *   --data-dir=DIR           keep a write-ahead log and snapshots in DIR and recover
+ *                            from them on start (default: none, memory only)
+ *   --snapshot-interval-ms=N how often to snapshot the store and truncate the log
+ *                            (default: 60000, 0 disables)
+ *   --seed-snapshot=FILE     boot from this snapshot (e.g. copied from another replica)
+ *                            when there is no local state yet
+ *   --anti-entropy-interval-ms=N  how often the primary compares hash trees with its
+ *                            backups and repairs what differs (default: 300000, 0 disables)
+ *   --transport=rmi|grpc     how to call the other replicas (default: rmi); with grpc
+ *                            this replica also serves the gRPC ReplicaService
+ *   --grpc-port-base=N       replicaN serves gRPC on port N + this (default: 50100)
+ *   --grpc-deadline-ms=N     longest a short gRPC call to another replica may take
+ *                            before it fails like a lost connection; state transfers,
+ *                            writes and promotion have no deadline (default: 60000)
+ *   --compression=none|deflate  compress replication batches and state transfers
+ *                            to peers configured the same way (default: none)
+ *   --replication-window=N   batches in flight to each backup before the primary
+ *                            waits for an ack (default: 4, 1 disables pipelining)
+ *   --replication-queue=N    batches queued for each backup's sender before the
+ *                            backup is left to catch up from the log (default: 256)
+ *   --replication-stats-interval-ms=N  how often to log each backup's send queue
+ *                            depth (default: 0, off)
+ */
 public class ReplicaMain {
 
     public static void main(String[] rawArgs) throws Exception {
-        if (rawArgs.length < 2) {
-            System.err.println("Usage: ReplicaMain <id> <primary|backup> [backupIds...]");
+        // Split "--name=value" options from positional args.
+        List<String> args = new ArrayList<>();
+        Map<String,String> options = new HashMap<>();
+        for (String a : rawArgs) {
+            if (a.startsWith("--")) {
+                int eq = a.indexOf('=');
+                if (eq < 0) {
+                    options.put(a.substring(2), "true");
+                } else {
+                    options.put(a.substring(2, eq), a.substring(eq + 1));
+                }
+            } else {
+                args.add(a);
+            }
+        }
+
+        if (args.size() < 2) {
+            System.err.println("Usage: ReplicaMain <id> <primary|backup> [backupIds...] [--option=value ...]");
             System.exit(1);
         }
 
-        String myId = rawArgs[0];
-        String role = rawArgs[1].toLowerCase();
+        String myId = args.get(0);
+        String role = args.get(1).toLowerCase();
         boolean startAsPrimary = role.equals("primary");
+        ReplicaConfig config = ReplicaConfig.fromOptions(options);
 
         Registry reg = LocateRegistry.getRegistry(); // default host=localhost, port=1099
 
         // If starting as primary, we may optionally pre-load backups; otherwise empty.
         List<ReplicaControl> backups = new ArrayList<>();
         if (startAsPrimary) {
-            for (int i = 2; i < rawArgs.length; i++) {
-                String backupId = rawArgs[i];
+            for (int i = 2; i < args.size(); i++) {
+                String backupId = args.get(i);
                 String backupName = "replica" + backupId;
                 try {
-                    ReplicaControl stub = (ReplicaControl) reg.lookup(backupName);
+                    ReplicaControl stub = config.getTransport().lookup(reg, backupName);
                     // liveness probe
                     if (stub.ping()) {
                         backups.add(stub);
@@ -40,14 +97,28 @@ public class ReplicaMain {
         }
 
         // Create my replica object (pass myId so it can exclude itself during discovery)
-        ReplicaImpl me = new ReplicaImpl(myId, startAsPrimary, backups);
+        ReplicaImpl me = new ReplicaImpl(myId, startAsPrimary, backups, config);
 
-        // Bind under replica<ID>
+        // Serve gRPC before binding, so peers that find us in the registry can reach us.
         String myName = "replica" + myId;
+        Server grpcServer = null;
+        if (config.getTransport().getKind() == ReplicaTransport.Kind.GRPC) {
+            int port = config.getTransport().grpcPort(myName);
+            grpcServer = ServerBuilder.forPort(port)
+                    .addService(new GrpcReplicaService(me, config.getTransport()))
+                    .maxInboundMessageSize(Integer.MAX_VALUE)
+                    // Callers ping during calls with no deadline; see GrpcReplicaClient.
+                    .permitKeepAliveTime(10, TimeUnit.SECONDS)
+                    .build()
+                    .start();
+            System.out.println("[ReplicaMain] gRPC ReplicaService listening on :" + port);
+        }
+
+        // Bind under replica<ID>; with gRPC the registry is only used to find us.
         reg.rebind(myName, me);
 
         System.out.println("[ReplicaMain] Started " + myName +
-                " role=" + (startAsPrimary ? "PRIMARY" : "BACKUP"));
+                " role=" + (startAsPrimary ? "PRIMARY" : "BACKUP") + " " + config);
         System.out.println("[ReplicaMain] Connected to external rmiregistry");
         System.out.println("[ReplicaMain] Press ENTER to exit this replica...");
 
@@ -56,6 +127,9 @@ public class ReplicaMain {
 
         System.out.println("[ReplicaMain] Shutting down " + myName);
         try { reg.unbind(myName); } catch (Exception ignored) {}
+        if (grpcServer != null) {
+            grpcServer.shutdown();
+        }
         System.exit(0);
     }
 }
\ No newline at end of file
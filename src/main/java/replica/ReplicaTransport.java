@@ -0,0 +1,108 @@
+package replica;
+
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How the frontend and replicas call each other: RMI stubs (the default) or
+ * the gRPC ReplicaService from replica.proto, selected with --transport.
+ *
+ * Either way the RMI registry stays the directory of live replicas. With
+ * gRPC, replicaN found there is reached on localhost at
+ * grpcPortBase + N, over one HTTP/2 channel per replica shared by every
+ * caller in the process, and each short gRPC call fails with a RemoteException
+ * after grpcDeadlineMillis (see GrpcReplicaClient for the calls without one).
+ */
+public final class ReplicaTransport {
+
+    public enum Kind {
+        RMI,
+        GRPC;
+
+        public static Kind parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown transport: " + name + " (expected rmi or grpc)");
+            }
+        }
+    }
+
+    public static final int DEFAULT_GRPC_PORT_BASE = 50100;
+
+    // generous, since one call may carry a whole state push
+    public static final long DEFAULT_GRPC_DEADLINE_MILLIS = 60_000;
+
+    private static final String NAME_PREFIX = "replica";
+
+    private final Kind kind;
+    private final int grpcPortBase;
+    private final long grpcDeadlineMillis;
+
+    // gRPC clients by registry name
+    private final ConcurrentMap<String,GrpcReplicaClient> clients = new ConcurrentHashMap<>();
+
+    public ReplicaTransport(Kind kind, int grpcPortBase, long grpcDeadlineMillis) {
+        if (grpcPortBase <= 0 || grpcPortBase > 65535) {
+            throw new IllegalArgumentException("gRPC port base out of range: " + grpcPortBase);
+        }
+        if (grpcDeadlineMillis <= 0) {
+            throw new IllegalArgumentException("gRPC deadline must be positive: " + grpcDeadlineMillis);
+        }
+        this.kind = kind;
+        this.grpcPortBase = grpcPortBase;
+        this.grpcDeadlineMillis = grpcDeadlineMillis;
+    }
+
+    public static ReplicaTransport rmi() {
+        return new ReplicaTransport(Kind.RMI, DEFAULT_GRPC_PORT_BASE, DEFAULT_GRPC_DEADLINE_MILLIS);
+    }
+
+    public static ReplicaTransport fromOptions(Map<String,String> options) {
+        return new ReplicaTransport(
+                Kind.parse(options.getOrDefault("transport", "rmi")),
+                Integer.parseInt(options.getOrDefault("grpc-port-base", String.valueOf(DEFAULT_GRPC_PORT_BASE))),
+                Long.parseLong(options.getOrDefault("grpc-deadline-ms", String.valueOf(DEFAULT_GRPC_DEADLINE_MILLIS))));
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * The replica bound as name in reg, reached over this transport.
+     * The result also implements PrimaryAPI.
+     */
+    public ReplicaControl lookup(Registry reg, String name) throws RemoteException, NotBoundException {
+        Remote stub = reg.lookup(name);
+        return (kind == Kind.RMI) ? (ReplicaControl) stub : connect(name);
+    }
+
+    /**
+     * gRPC client for the replica called name (replicaN).
+     */
+    GrpcReplicaClient connect(String name) {
+        return clients.computeIfAbsent(name, n -> new GrpcReplicaClient(n, "localhost", grpcPort(n), grpcDeadlineMillis));
+    }
+
+    /**
+     * Port the replica called name serves its gRPC ReplicaService on.
+     */
+    public int grpcPort(String name) {
+        if (!name.startsWith(NAME_PREFIX)) {
+            throw new IllegalArgumentException("Not a replica name: " + name);
+        }
+        return grpcPortBase + Integer.parseInt(name.substring(NAME_PREFIX.length()));
+    }
+
+    @Override
+    public String toString() {
+        return (kind == Kind.RMI) ? "rmi"
+                : "grpc grpc-port-base=" + grpcPortBase + " grpc-deadline-ms=" + grpcDeadlineMillis;
+    }
+}
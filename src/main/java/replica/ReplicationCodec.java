@@ -0,0 +1,364 @@
+package replica;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of the replication payloads: full states, runs of
+ * mutations and state transfer pages. Used instead of Java serialization of HashMaps and
+ * Mutation lists, which carries class descriptors, object headers and
+ * handle tables for every message.
+ *
+ * Layout, with integers as unsigned LEB128 varints (zigzag for signed ones)
+ * and strings as a varint byte length followed by UTF-8:
+ *
+ *   state:     STATE, VERSION, seq (signed), count, count x (key, value)
+ *   mutations: MUTATIONS, VERSION, count, count x (seq delta (signed), key, value)
+ *   chunk:     CHUNK, VERSION, seq (signed), last (0/1), count, count x (key, value)
+ *
+ * A mutation's seq is stored as the difference from the previous one (the
+ * first from 0), so a consecutive run costs one byte per seq.
+ *
+ * compress() turns any of them into kind | DEFLATED, VERSION, the body's
+ * length, then the body (everything after the header) deflated. The decode
+ * methods take either form, so only the sender decides whether to compress.
+ */
+public final class ReplicationCodec {
+
+    private static final byte STATE = 1;
+    private static final byte MUTATIONS = 2;
+    private static final byte CHUNK = 3;
+    private static final byte DEFLATED = 0x40;
+    private static final byte VERSION = 1;
+
+    // Deflate cannot expand data more than about 1032:1; a larger claimed
+    // body length means the payload is corrupt.
+    private static final int MAX_INFLATE_RATIO = 1032;
+
+    /**
+     * A decoded full state and the seq it reflects (-1 if unknown).
+     */
+    public static final class State {
+        public final Map<String,String> entries;
+        public final long seq;
+
+        State(Map<String,String> entries, long seq) {
+            this.entries = entries;
+            this.seq = seq;
+        }
+    }
+
+    private ReplicationCodec() {
+    }
+
+    public static byte[] encodeState(Map<String,String> entries, long seq) {
+        Encoder out = new Encoder(16 + entries.size() * 24);
+        out.writeByte(STATE);
+        out.writeByte(VERSION);
+        out.writeVarLong(zigzag(seq));
+        out.writeVarLong(entries.size());
+        for (Map.Entry<String,String> e : entries.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeString(e.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    public static State decodeState(byte[] encoded) {
+        Decoder in = open(encoded, STATE);
+        long seq = unzigzag(in.readVarLong());
+        int count = in.readCount();
+        Map<String,String> entries = new HashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            entries.put(in.readString(), in.readString());
+        }
+        in.expectEnd();
+        return new State(entries, seq);
+    }
+
+    public static byte[] encodeMutations(List<Mutation> mutations) {
+        Encoder out = new Encoder(8 + mutations.size() * 32);
+        out.writeByte(MUTATIONS);
+        out.writeByte(VERSION);
+        out.writeVarLong(mutations.size());
+        long prev = 0;
+        for (Mutation m : mutations) {
+            out.writeVarLong(zigzag(m.getSeq() - prev));
+            prev = m.getSeq();
+            out.writeString(m.getKey());
+            out.writeString(m.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    public static List<Mutation> decodeMutations(byte[] encoded) {
+        Decoder in = open(encoded, MUTATIONS);
+        int count = in.readCount();
+        List<Mutation> mutations = new ArrayList<>(count);
+        long seq = 0;
+        for (int i = 0; i < count; i++) {
+            seq += unzigzag(in.readVarLong());
+            mutations.add(new Mutation(seq, in.readString(), in.readString()));
+        }
+        in.expectEnd();
+        return mutations;
+    }
+
+    public static byte[] encodeChunk(StateChunk chunk) {
+        Map<String,String> entries = chunk.getEntries();
+        Encoder out = new Encoder(16 + entries.size() * 24);
+        out.writeByte(CHUNK);
+        out.writeByte(VERSION);
+        out.writeVarLong(zigzag(chunk.getSeq()));
+        out.writeByte((byte) (chunk.isLast() ? 1 : 0));
+        out.writeVarLong(entries.size());
+        for (Map.Entry<String,String> e : entries.entrySet()) {
+            out.writeString(e.getKey());
+            out.writeString(e.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    public static StateChunk decodeChunk(byte[] encoded) {
+        Decoder in = open(encoded, CHUNK);
+        long seq = unzigzag(in.readVarLong());
+        boolean last = in.readByte() != 0;
+        int count = in.readCount();
+        LinkedHashMap<String,String> entries = new LinkedHashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            entries.put(in.readString(), in.readString());
+        }
+        in.expectEnd();
+        return new StateChunk(seq, entries, last);
+    }
+
+    /**
+     * Compress an encoded payload for a link using compression. Returns encoded
+     * itself for NONE, or when deflating would not make it smaller.
+     */
+    public static byte[] compress(byte[] encoded, Compression compression) {
+        if (compression == Compression.NONE || encoded.length <= 2 || (encoded[0] & DEFLATED) != 0) {
+            return encoded;
+        }
+        int bodyLength = encoded.length - 2;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(encoded, 2, bodyLength);
+            deflater.finish();
+            Encoder out = new Encoder(16 + bodyLength / 2);
+            out.writeByte((byte) (encoded[0] | DEFLATED));
+            out.writeByte(VERSION);
+            out.writeVarLong(bodyLength);
+            while (!deflater.finished()) {
+                out.ensure(Math.max(512, bodyLength / 8));
+                out.pos += deflater.deflate(out.buf, out.pos, out.buf.length - out.pos);
+                if (out.pos >= encoded.length) {
+                    return encoded;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decoder positioned after the header of an encoded payload of the given
+     * kind, inflating it first if it was compressed.
+     */
+    private static Decoder open(byte[] encoded, byte kind) {
+        if (encoded.length > 0 && encoded[0] == (byte) (kind | DEFLATED)) {
+            encoded = inflate(encoded, kind);
+        }
+        Decoder in = new Decoder(encoded);
+        in.expectHeader(kind);
+        return in;
+    }
+
+    private static byte[] inflate(byte[] compressed, byte kind) {
+        Decoder in = new Decoder(compressed);
+        in.expectHeader((byte) (kind | DEFLATED));
+        long bodyLength = in.readVarLong();
+        int deflatedLength = compressed.length - in.pos;
+        if (bodyLength < 0 || bodyLength > (long) deflatedLength * MAX_INFLATE_RATIO
+                || bodyLength > Integer.MAX_VALUE - 2) {
+            throw new IllegalArgumentException("bad inflated length " + bodyLength);
+        }
+        byte[] plain = new byte[2 + (int) bodyLength];
+        plain[0] = kind;
+        plain[1] = VERSION;
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed, in.pos, deflatedLength);
+            int pos = 2;
+            while (pos < plain.length) {
+                int n = inflater.inflate(plain, pos, plain.length - pos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += n;
+            }
+            if (pos != plain.length) {
+                throw new IllegalArgumentException("compressed payload inflated to " + (pos - 2)
+                        + " bytes, expected " + bodyLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt compressed payload: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+        return plain;
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static final class Encoder {
+        private byte[] buf;
+        private int pos;
+
+        Encoder(int initialCapacity) {
+            buf = new byte[Math.max(16, initialCapacity)];
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[pos++] = b;
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        void writeString(String s) {
+            int n = s.length();
+            // Most keys and values are ASCII: copy the chars straight in,
+            // without an intermediate byte[] per string.
+            boolean ascii = true;
+            for (int i = 0; i < n && ascii; i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarLong(n);
+                ensure(n);
+                for (int i = 0; i < n; i++) {
+                    buf[pos++] = (byte) s.charAt(i);
+                }
+            } else {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, pos, bytes.length);
+                pos += bytes.length;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void ensure(int n) {
+            if (buf.length - pos < n) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+            }
+        }
+    }
+
+    // Throws IllegalArgumentException on anything malformed.
+    private static final class Decoder {
+        private final byte[] buf;
+        private int pos;
+
+        Decoder(byte[] buf) {
+            this.buf = buf;
+        }
+
+        void expectHeader(byte kind) {
+            need(2);
+            if (buf[pos] != kind || buf[pos + 1] != VERSION) {
+                throw new IllegalArgumentException("not an encoded " + kindName(kind)
+                        + " (kind " + buf[pos] + ", version " + buf[pos + 1] + ")");
+            }
+            pos += 2;
+        }
+
+        void expectEnd() {
+            if (pos != buf.length) {
+                throw new IllegalArgumentException((buf.length - pos) + " trailing bytes");
+            }
+        }
+
+        byte readByte() {
+            need(1);
+            return buf[pos++];
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                need(1);
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("varint too long at " + pos);
+        }
+
+        // a count or length, bounded by the bytes left so a corrupt value cannot allocate wildly
+        int readCount() {
+            long n = readVarLong();
+            if (n < 0 || n > buf.length - pos) {
+                throw new IllegalArgumentException("bad length " + n + " at " + pos);
+            }
+            return (int) n;
+        }
+
+        String readString() {
+            int n = readCount();
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        private static String kindName(byte kind) {
+            String name;
+            switch (kind & ~DEFLATED) {
+                case STATE:
+                    name = "state";
+                    break;
+                case MUTATIONS:
+                    name = "mutation run";
+                    break;
+                default:
+                    name = "state chunk";
+            }
+            return ((kind & DEFLATED) != 0) ? "compressed " + name : name;
+        }
+
+        private void need(int n) {
+            if (buf.length - pos < n) {
+                throw new IllegalArgumentException("truncated at " + pos);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package replica;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded, in-memory log of the most recent mutations, in sequence order.
+ *
+ * Backed by a ring buffer: once full, appending overwrites the oldest entry.
+ * The primary uses it to resend only the suffix a backup is missing instead
+ * of pushing the whole store.
+ */
+public class ReplicationLog {
+
+    private final Mutation[] ring;
+
+    // seq of the newest entry; entries cover (lastSeq - size, lastSeq]
+    private long lastSeq;
+    private int size;
+
+    public ReplicationLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.ring = new Mutation[capacity];
+    }
+
+    /**
+     * Append the next mutation. Its seq must directly follow the last one.
+     */
+    public synchronized void append(Mutation m) {
+        if (m.getSeq() != lastSeq + 1) {
+            throw new IllegalStateException("Out of order append: last=" + lastSeq + ", got=" + m.getSeq());
+        }
+        ring[(int) (m.getSeq() % ring.length)] = m;
+        lastSeq = m.getSeq();
+        if (size < ring.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Drop all entries and continue numbering after seq.
+     * Called when the store is replaced wholesale by a full state push.
+     */
+    public synchronized void reset(long seq) {
+        Arrays.fill(ring, null);
+        lastSeq = Math.max(seq, 0);
+        size = 0;
+    }
+
+    /**
+     * Like reset(seq), but keep last, the mutation applied at seq, as the only
+     * entry, so the log still shows where its history stands. Called when the
+     * store is loaded from a snapshot that recorded it; last may be null.
+     */
+    public synchronized void reset(long seq, Mutation last) {
+        if (last == null || last.getSeq() != seq || seq <= 0) {
+            reset(seq);
+            return;
+        }
+        reset(seq - 1);
+        append(last);
+    }
+
+    /**
+     * Mutations with seq greater than afterSeq, oldest first.
+     * Returns null if part of that suffix has already been overwritten.
+     */
+    public List<Mutation> since(long afterSeq) {
+        return since(afterSeq, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like since(afterSeq), but at most max mutations.
+     */
+    public synchronized List<Mutation> since(long afterSeq, int max) {
+        long firstSeq = lastSeq - size + 1;
+        if (afterSeq < firstSeq - 1) {
+            return null;
+        }
+        long endSeq = Math.min(lastSeq, afterSeq + max);
+        List<Mutation> result = new ArrayList<>((int) Math.max(0, endSeq - afterSeq));
+        for (long s = afterSeq + 1; s <= endSeq; s++) {
+            result.add(ring[(int) (s % ring.length)]);
+        }
+        return result;
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+}
@@ -0,0 +1,217 @@
+package replica;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point-in-time copy of a replica's store on disk.
+ *
+ * Layout: magic, format version, the seq the snapshot was taken at, the
+ * first WAL segment not covered by it and the mutation at that seq (a 0/1
+ * flag, then its key and value), then length-prefixed UTF-8 key/value pairs,
+ * a -1 end marker, the entry count and a CRC32 of everything before it.
+ * Version 1 files have no mutation and still load.
+ *
+ * Snapshots are written to a temporary file and renamed into place, so the
+ * file at the final path is always complete. They are read back through
+ * memory-mapped windows: the OS pages the file in as the decoder walks it,
+ * with no read() calls or copies through stream buffers.
+ */
+final class SnapshotFile {
+
+    static final class Header {
+        // last mutation included in the snapshot
+        final long seq;
+        // WAL segment holding the first mutation after seq
+        final long firstSegment;
+        // the mutation applied at seq, so a replica loading the snapshot can show
+        // a source that it shares its history; null if the writer did not know it
+        final Mutation last;
+
+        Header(long seq, long firstSegment, Mutation last) {
+            this.seq = seq;
+            this.firstSegment = firstSegment;
+            this.last = last;
+        }
+    }
+
+    private static final int MAGIC = 0x4B56534E; // "KVSN"
+    private static final int VERSION = 2;
+    private static final int VERSION_WITHOUT_LAST = 1;
+    private static final int END = -1;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Write entries as the snapshot at file, replacing any previous one.
+     * last is the mutation applied at seq, or null if unknown.
+     */
+    static void write(Path file, long seq, long firstSegment, Mutation last,
+                      Iterable<Map.Entry<String,String>> entries) throws IOException {
+        if (last != null && last.getSeq() != seq) {
+            throw new IllegalArgumentException("last mutation is at seq " + last.getSeq() + ", not " + seq);
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+            out.writeLong(firstSegment);
+            out.writeInt(last != null ? 1 : 0);
+            if (last != null) {
+                WriteAheadLog.writeString(out, last.getKey());
+                WriteAheadLog.writeString(out, last.getValue());
+            }
+            long count = 0;
+            for (Map.Entry<String,String> e : entries) {
+                WriteAheadLog.writeString(out, e.getKey());
+                WriteAheadLog.writeString(out, e.getValue());
+                count++;
+            }
+            out.writeInt(END);
+            out.writeLong(count);
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            ch.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog.syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Feed every entry of the snapshot at file to sink and return its header.
+     * Throws if the file is damaged; sink may have seen part of it by then.
+     */
+    static Header read(Path file, BiConsumer<String,String> sink) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedReader in = new MappedReader(ch);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION && version != VERSION_WITHOUT_LAST) {
+                throw new IOException(file + " has unsupported snapshot version " + version);
+            }
+            long seq = in.readLong();
+            long firstSegment = in.readLong();
+            Mutation last = null;
+            if (version == VERSION && in.readInt() != 0) {
+                String key = in.readString(in.readInt());
+                last = new Mutation(seq, key, in.readString(in.readInt()));
+            }
+            Header header = new Header(seq, firstSegment, last);
+
+            long count = 0;
+            while (true) {
+                int keyLength = in.readInt();
+                if (keyLength == END) {
+                    break;
+                }
+                String key = in.readString(keyLength);
+                sink.accept(key, in.readString(in.readInt()));
+                count++;
+            }
+            long expectedCount = in.readLong();
+            int expectedCrc = in.checksum();
+            if (in.readInt() != expectedCrc || expectedCount != count) {
+                throw new IOException(file + " is corrupt (checksum or entry count mismatch)");
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Sequential reader over a file mapped a window at a time, so files larger
+     * than one mapping (2 GB) work and only the window being decoded needs to
+     * be resident. Tracks a CRC32 of everything consumed.
+     */
+    private static final class MappedReader {
+        private static final long WINDOW_BYTES = 256L << 20;
+
+        private final FileChannel ch;
+        private final long size;
+        private final CRC32 crc = new CRC32();
+        private MappedByteBuffer window;
+        private long windowStart;
+        // position in window up to which crc has been updated
+        private int crcMark;
+
+        MappedReader(FileChannel ch) throws IOException {
+            this.ch = ch;
+            this.size = ch.size();
+            map(0, 0);
+        }
+
+        int readInt() throws IOException {
+            need(4);
+            return window.getInt();
+        }
+
+        long readLong() throws IOException {
+            need(8);
+            return window.getLong();
+        }
+
+        String readString(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("negative string length " + length);
+            }
+            need(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // CRC32 of every byte consumed so far
+        int checksum() {
+            updateCrc();
+            return (int) crc.getValue();
+        }
+
+        private void need(int n) throws IOException {
+            if (window.remaining() >= n) {
+                return;
+            }
+            long pos = windowStart + window.position();
+            if (size - pos < n) {
+                throw new EOFException("snapshot ends at " + size + ", needed " + n + " bytes at " + pos);
+            }
+            updateCrc();
+            map(pos, n);
+        }
+
+        private void map(long start, int atLeast) throws IOException {
+            long length = Math.min(size - start, Math.max(WINDOW_BYTES, atLeast));
+            window = ch.map(FileChannel.MapMode.READ_ONLY, start, length);
+            windowStart = start;
+            crcMark = 0;
+        }
+
+        private void updateCrc() {
+            ByteBuffer consumed = window.duplicate();
+            consumed.position(crcMark).limit(window.position());
+            crc.update(consumed);
+            crcMark = window.position();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package replica;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+
+/**
+ * One page of a replica's store, in key order, as pulled by a joining
+ * replica during state transfer.
+ *
+ * seq is the source's last applied sequence number taken before the page
+ * was read, so every entry is at least that recent. Replaying the source's
+ * mutations after the first page's seq over the copied pages therefore
+ * yields the source's state.
+ */
+public final class StateChunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long seq;
+    private final LinkedHashMap<String,String> entries;
+    private final boolean last;
+
+    public StateChunk(long seq, LinkedHashMap<String,String> entries, boolean last) {
+        this.seq = seq;
+        this.entries = entries;
+        this.last = last;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public LinkedHashMap<String,String> getEntries() {
+        return entries;
+    }
+
+    // no entries follow this chunk
+    public boolean isLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return "StateChunk{seq=" + seq + ", entries=" + entries.size() + ", last=" + last + "}";
+    }
+}
@@ -0,0 +1,374 @@
+package replica;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * Key-value store with snapshot-isolated, lock-free reads.
+ *
+ * Writes are grouped into epochs: a single writer (the caller holds the
+ * replica's apply lock) puts any number of entries and then calls publish(),
+ * which makes the whole epoch visible at once. Readers only look at the last
+ * published epoch, so a GET never sees half of a batch or half of a full-state
+ * push, and never waits for a writer.
+ *
+ * Keys are also kept in order so range scans can walk them without sorting
+ * or copying the store. IndexKind picks how: a hash map for point lookups
+ * plus a separate skip-list key index, or a single skip-list map serving both.
+ *
+ * Each key keeps a short version chain: the versions being written in the
+ * current epoch plus the newest published one. Older versions are replaced
+ * by a PRUNED marker as soon as a newer one is written; a reader that was
+ * descheduled across several publishes and reaches the marker simply retries
+ * against the latest epoch.
+ *
+ * pin() additionally keeps one older epoch fully readable, so a background
+ * snapshot can walk a fixed point in time while writes carry on.
+ */
+public class VersionedStore {
+
+    public enum IndexKind {
+        // ConcurrentHashMap of versions + ConcurrentSkipListSet of keys:
+        // O(1) point lookups, an extra index node per key
+        HASH,
+        // one ConcurrentSkipListMap of versions: O(log n) point lookups,
+        // one structure to update and keep in memory
+        SKIPLIST;
+
+        public static IndexKind parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown store index: " + name + " (expected hash or skiplist)");
+            }
+        }
+    }
+
+    private static final class Version {
+        final long epoch;
+        final String value; // null marks a deleted key
+        volatile Version prev;
+
+        Version(long epoch, String value, Version prev) {
+            this.epoch = epoch;
+            this.value = value;
+            this.prev = prev;
+        }
+    }
+
+    // stands in for versions unlinked from a chain; readers that reach it retry
+    private static final Version PRUNED = new Version(Long.MIN_VALUE, null, null);
+
+    private final ConcurrentMap<String,Version> versions;
+
+    // every key present in versions, in key order; a live view of versions
+    // itself for SKIPLIST, a separately maintained set for HASH
+    private final NavigableSet<String> keyIndex;
+    private final boolean separateIndex;
+
+    // last epoch readers may see
+    private volatile long visibleEpoch = 0;
+
+    // epoch in which replaceAll last dropped deleted keys from the map;
+    // readers on an older snapshot cannot trust a missing key and retry
+    private volatile long lastRemovalEpoch = 0;
+
+    private static final long NOT_PINNED = Long.MAX_VALUE;
+
+    // epoch whose versions writers must not prune, or NOT_PINNED
+    private volatile long pinnedEpoch = NOT_PINNED;
+
+    // keys replaceAll deleted while an epoch was pinned; their tombstones are
+    // dropped by the first publish after unpin(). Writer only.
+    private List<String> pendingRemovals = new ArrayList<>();
+
+    public VersionedStore() {
+        this(IndexKind.HASH);
+    }
+
+    public VersionedStore(IndexKind kind) {
+        if (kind == IndexKind.SKIPLIST) {
+            ConcurrentSkipListMap<String,Version> ordered = new ConcurrentSkipListMap<>();
+            this.versions = ordered;
+            this.keyIndex = ordered.keySet();
+            this.separateIndex = false;
+        } else {
+            this.versions = new ConcurrentHashMap<>();
+            this.keyIndex = new ConcurrentSkipListSet<>();
+            this.separateIndex = true;
+        }
+    }
+
+    /**
+     * Value of key as of the last published epoch, or null if absent.
+     */
+    public String get(String key) {
+        while (true) {
+            long snapshot = visibleEpoch;
+            Version v = visibleAt(key, snapshot);
+            if (v != PRUNED) {
+                return (v == null) ? null : v.value;
+            }
+        }
+    }
+
+    /**
+     * Values of keys as of one published epoch. Absent keys are left out.
+     */
+    public Map<String,String> getAll(Collection<String> keys) {
+        retry:
+        while (true) {
+            long snapshot = visibleEpoch;
+            Map<String,String> result = new LinkedHashMap<>();
+            for (String key : keys) {
+                Version v = visibleAt(key, snapshot);
+                if (v == PRUNED) {
+                    continue retry;
+                }
+                if (v != null && v.value != null) {
+                    result.put(key, v.value);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Up to limit entries with keys in [fromKey, toKey), in key order, as of one
+     * published epoch. fromKey is excluded if fromInclusive is false (to resume
+     * after the last key of a previous page). Null bounds are open.
+     */
+    public LinkedHashMap<String,String> scan(String fromKey, boolean fromInclusive, String toKey, int limit) {
+        NavigableSet<String> range = keyIndex;
+        if (fromKey != null) {
+            range = range.tailSet(fromKey, fromInclusive);
+        }
+        if (toKey != null) {
+            range = range.headSet(toKey, false);
+        }
+
+        retry:
+        while (true) {
+            long snapshot = visibleEpoch;
+            LinkedHashMap<String,String> page = new LinkedHashMap<>();
+            for (String key : range) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                Version v = visibleAt(key, snapshot);
+                if (v == PRUNED) {
+                    continue retry;
+                }
+                if (v != null && v.value != null) {
+                    page.put(key, v.value);
+                }
+            }
+            // A key dropped from the index while we walked may have existed at our snapshot.
+            if (snapshot < lastRemovalEpoch) {
+                continue;
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Keep the last published epoch readable through pinnedEntries() until
+     * unpin(), however many epochs are published meanwhile. Call with writers
+     * held out; at most one epoch is pinned at a time. Returns the epoch.
+     */
+    public long pin() {
+        if (pinnedEpoch != NOT_PINNED) {
+            throw new IllegalStateException("epoch " + pinnedEpoch + " is already pinned");
+        }
+        pinnedEpoch = visibleEpoch;
+        return pinnedEpoch;
+    }
+
+    public void unpin() {
+        pinnedEpoch = NOT_PINNED;
+    }
+
+    /**
+     * Entries as of the pinned epoch, in no particular order. Safe to iterate
+     * concurrently with writes; only valid until unpin().
+     */
+    public Iterable<Map.Entry<String,String>> pinnedEntries() {
+        long epoch = pinnedEpoch;
+        if (epoch == NOT_PINNED) {
+            throw new IllegalStateException("no epoch is pinned");
+        }
+        return () -> new Iterator<Map.Entry<String,String>>() {
+            private final Iterator<String> keys = versions.keySet().iterator();
+            private Map.Entry<String,String> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    String key = keys.next();
+                    Version v = visibleAt(key, epoch);
+                    if (v != null && v != PRUNED && v.value != null) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(key, v.value);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String,String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String,String> e = next;
+                next = null;
+                return e;
+            }
+        };
+    }
+
+    /**
+     * Stage a write in the current (unpublished) epoch. Single writer only.
+     */
+    public void put(String key, String value) {
+        write(key, value);
+    }
+
+    /**
+     * Make every write since the last publish visible to readers at once.
+     */
+    public void publish() {
+        visibleEpoch = visibleEpoch + 1;
+        if (!pendingRemovals.isEmpty() && pinnedEpoch == NOT_PINNED) {
+            List<String> removed = pendingRemovals;
+            pendingRemovals = new ArrayList<>();
+            dropTombstones(removed);
+        }
+    }
+
+    /**
+     * Replace the whole contents with newState and publish it as one epoch.
+     * Single writer only.
+     */
+    public void replaceAll(Map<String,String> newState) {
+        List<String> removed = new ArrayList<>();
+        for (String key : versions.keySet()) {
+            if (!newState.containsKey(key)) {
+                write(key, null);
+                removed.add(key);
+            }
+        }
+        for (Map.Entry<String,String> e : newState.entrySet()) {
+            write(e.getKey(), e.getValue());
+        }
+        // A pinned snapshot may still need the deleted keys; keep the tombstones
+        // until the first publish after unpin(). This publish drops them at once
+        // if nothing is pinned.
+        pendingRemovals.addAll(removed);
+        publish();
+    }
+
+    /**
+     * Remove the tombstones of keys from the map and key index. Readers on
+     * the current epoch see the keys as absent either way; readers still on
+     * an older epoch retry. Writer only, with no epoch pinned.
+     */
+    private void dropTombstones(List<String> keys) {
+        lastRemovalEpoch = visibleEpoch;
+        for (String key : keys) {
+            Version v = versions.get(key);
+            // Skip keys written again since they were deleted.
+            if (v != null && v.value == null && versions.remove(key, v) && separateIndex) {
+                keyIndex.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Feed every entry to action, each as of the last epoch published when it
+     * is reached. Not a consistent snapshot: writes published meanwhile may or
+     * may not be seen. Costs no copy of the store.
+     */
+    public void forEach(BiConsumer<String,String> action) {
+        for (String key : versions.keySet()) {
+            String value = get(key);
+            if (value != null) {
+                action.accept(key, value);
+            }
+        }
+    }
+
+    /**
+     * Copy of the store as of the last published epoch.
+     * Consistent only if the caller keeps writers out while it runs.
+     */
+    public Map<String,String> snapshot() {
+        Map<String,String> copy = new HashMap<>(versions.size() * 4 / 3 + 1);
+        for (String key : versions.keySet()) {
+            String value = get(key);
+            if (value != null) {
+                copy.put(key, value);
+            }
+        }
+        return copy;
+    }
+
+    public int size() {
+        return versions.size();
+    }
+
+    /**
+     * Newest version of key with epoch <= snapshot, null if the key did not
+     * exist then, or PRUNED if that version is no longer reachable.
+     */
+    private Version visibleAt(String key, long snapshot) {
+        Version v = versions.get(key);
+        if (v == null) {
+            return (snapshot < lastRemovalEpoch) ? PRUNED : null;
+        }
+        while (v != null && v.epoch > snapshot) {
+            v = v.prev;
+        }
+        return v;
+    }
+
+    private void write(String key, String value) {
+        long epoch = visibleEpoch + 1;
+        versions.compute(key, (k, head) -> {
+            Version keep;
+            if (head == null) {
+                if (separateIndex) {
+                    keyIndex.add(key);
+                }
+                keep = null;
+            } else if (head.epoch == epoch) {
+                // Overwritten within the same epoch: readers never saw head.
+                keep = head.prev;
+            } else {
+                // head is the newest published version; nothing older is needed,
+                // except the version a pinned snapshot still reads.
+                keep = head;
+                Version cut = head;
+                long pinned = pinnedEpoch;
+                while (cut.epoch > pinned && cut.prev != null && cut.prev != PRUNED) {
+                    cut = cut.prev;
+                }
+                if (cut.prev != null) {
+                    cut.prev = PRUNED;
+                }
+            }
+            return new Version(epoch, value, keep);
+        });
+    }
+}
@@ -0,0 +1,330 @@
+package replica;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the mutations a replica has applied, so its store
+ * survives a restart.
+ *
+ * Records are staged in memory by append() (called under the replica's apply
+ * lock, so they are in seq order) and reach the disk in sync(). sync() is a
+ * group commit: the first caller writes and fsyncs everything staged so far,
+ * and callers that queued behind it find their records already durable, so
+ * one fsync covers every batch applied while the previous one was running.
+ *
+ * The log is split into numbered segment files, name.wal.N. roll() starts a
+ * new segment; once a snapshot covers everything before it, the older
+ * segments are deleted with deleteSegmentsBefore().
+ *
+ * On disk each record is [int length][int crc32][payload]; a torn or
+ * corrupt tail left by a crash is dropped on open.
+ */
+public class WriteAheadLog implements Closeable {
+
+    interface Replayer {
+        void put(long seq, String key, String value);
+    }
+
+    private static final byte PUT = 1;
+
+    // sanity bound when reading lengths back from a possibly corrupt file
+    private static final int MAX_RECORD_BYTES = 1 << 30;
+
+    private final Path dir;
+    private final String name;
+
+    // segment being appended to, and its file; guarded by syncLock
+    private long segment;
+    private FileChannel channel;
+
+    // records appended but not yet written; guarded by this
+    private final ByteArrayOutputStream staged = new ByteArrayOutputStream();
+
+    // logical positions: total bytes ever appended, and how many of those are
+    // known to be on disk. They never go backwards, even across segments.
+    private long appendedPos;   // guarded by this
+    private volatile long durablePos;
+
+    // held by the thread currently writing and fsyncing
+    private final Object syncLock = new Object();
+
+    // first write or fsync error; records staged with it are lost, so every
+    // later sync fails too. Guarded by syncLock.
+    private IOException failure;
+
+    private WriteAheadLog(Path dir, String name, long segment, long size) throws IOException {
+        this.dir = dir;
+        this.name = name;
+        this.segment = segment;
+        this.channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.channel.truncate(size);
+        this.channel.position(size);
+    }
+
+    /**
+     * Open (or create) the log called name in dir, feeding every intact record
+     * of segments firstSegment and later to replayer in order before returning.
+     * Older segments are already covered by a snapshot and are deleted.
+     */
+    public static WriteAheadLog open(Path dir, String name, long firstSegment, Replayer replayer) throws IOException {
+        Files.createDirectories(dir);
+        List<Long> segments = listSegments(dir, name);
+
+        long current = Math.max(firstSegment, 1);
+        long validBytes = 0;
+        boolean damaged = false;
+        for (long n : segments) {
+            Path file = dir.resolve(segmentName(name, n));
+            if (n < firstSegment || damaged) {
+                if (damaged) {
+                    System.err.println("[WAL] Discarding " + file + ", it follows a damaged segment");
+                }
+                Files.delete(file);
+                continue;
+            }
+            current = n;
+            validBytes = replay(file, replayer);
+            long size = Files.size(file);
+            if (validBytes < size) {
+                System.err.println("[WAL] Discarding " + (size - validBytes) + " bytes of torn or corrupt tail in " + file);
+                damaged = true;
+            }
+        }
+        return new WriteAheadLog(dir, name, current, validBytes);
+    }
+
+    /**
+     * True if dir holds any segment of the log called name.
+     */
+    public static boolean exists(Path dir, String name) throws IOException {
+        return Files.isDirectory(dir) && !listSegments(dir, name).isEmpty();
+    }
+
+    /**
+     * Stage m and return the position sync() must reach for it to be durable.
+     */
+    public synchronized long append(Mutation m) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(32 + m.getKey().length() + m.getValue().length());
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeByte(PUT);
+            out.writeLong(m.getSeq());
+            writeString(out, m.getKey());
+            writeString(out, m.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException("in-memory write failed", e);
+        }
+        return stage(payload.toByteArray());
+    }
+
+    /**
+     * Position just past the last appended record, durable or not.
+     */
+    public synchronized long appendedPosition() {
+        return appendedPos;
+    }
+
+    /**
+     * Block until everything up to pos is on disk.
+     */
+    public void sync(long pos) throws IOException {
+        if (durablePos >= pos) {
+            return;
+        }
+        synchronized (syncLock) {
+            // Whoever held the lock before us may have written our records too.
+            if (durablePos >= pos) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Make everything appended so far durable in the current segment and start
+     * a new one. Call with writers held out, so the new segment holds exactly
+     * the mutations applied after this point. Returns the new segment's number.
+     */
+    public long roll() throws IOException {
+        synchronized (syncLock) {
+            flush();
+            channel.close();
+            segment++;
+            channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            syncDirectory(dir);
+            return segment;
+        }
+    }
+
+    /**
+     * Delete the segments numbered below first; a snapshot now covers them.
+     */
+    public void deleteSegmentsBefore(long first) throws IOException {
+        synchronized (syncLock) {
+            for (long n : listSegments(dir, name)) {
+                if (n < first && n != segment) {
+                    Files.deleteIfExists(segmentFile(n));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            channel.close();
+        }
+    }
+
+    // Write and fsync everything staged. Caller holds syncLock.
+    private void flush() throws IOException {
+        if (failure != null) {
+            throw new IOException("write-ahead log failed earlier", failure);
+        }
+        byte[] batch;
+        long target;
+        synchronized (this) {
+            batch = staged.toByteArray();
+            staged.reset();
+            target = appendedPos;
+        }
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(batch);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        durablePos = target;
+    }
+
+    private synchronized long stage(byte[] payload) {
+        byte[] record = frame(payload);
+        staged.write(record, 0, record.length);
+        appendedPos += record.length;
+        return appendedPos;
+    }
+
+    private Path segmentFile(long n) {
+        return dir.resolve(segmentName(name, n));
+    }
+
+    private static String segmentName(String name, long n) {
+        return String.format("%s.wal.%010d", name, n);
+    }
+
+    // Segment numbers of the log called name in dir, ascending.
+    private static List<Long> listSegments(Path dir, String name) throws IOException {
+        String prefix = name + ".wal.";
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path f : files) {
+                try {
+                    segments.add(Long.parseLong(f.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static byte[] frame(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        return record.array();
+    }
+
+    /**
+     * Feed each intact record of file to replayer. Returns the length of the
+     * intact prefix; anything after it is a torn write or corruption.
+     */
+    private static long replay(Path file, Replayer replayer) throws IOException {
+        long valid = 0;
+        try (InputStream raw = Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            while (true) {
+                byte[] payload;
+                int crcValue;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        return valid;
+                    }
+                    crcValue = in.readInt();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return valid;
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != crcValue) {
+                    return valid;
+                }
+                apply(payload, replayer);
+                valid += 8 + payload.length;
+            }
+        }
+    }
+
+    private static void apply(byte[] payload, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long seq = in.readLong();
+        if (type == PUT) {
+            replayer.put(seq, readString(in), readString(in));
+        } else {
+            throw new IOException("Unknown WAL record type " + type);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Make a create, rename or delete durable. Not every platform can open a directory; skip it there.
+    static void syncDirectory(Path dir) {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package replica;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ALL and QUORUM are measured against the whole backup group, so backups
+ * that are down make PUTs report false instead of needing fewer acks.
+ */
+class AckPolicyTest {
+
+    private final List<ReplicaImpl> replicas = new ArrayList<>();
+
+    @AfterEach
+    void closeReplicas() {
+        TestReplicas.close(replicas.toArray(new ReplicaImpl[0]));
+    }
+
+    @Test
+    void requiredAcksCountTheWholeGroup() {
+        assertEquals(2, AckPolicy.ALL.requiredAcks(2));
+        assertEquals(1, AckPolicy.QUORUM.requiredAcks(2));
+        assertEquals(2, AckPolicy.QUORUM.requiredAcks(4));
+        assertEquals(0, AckPolicy.QUORUM.requiredAcks(0));
+        assertEquals(0, AckPolicy.ASYNC.requiredAcks(2));
+    }
+
+    @Test
+    void oneOfTwoBackupsDown() throws Exception {
+        ReplicaImpl backup = start("2", false, List.of());
+        ReplicaImpl primary = start("1", true, List.of(backup, TestReplicas.down("replica3")));
+
+        assertTrue(primary.handleClientPut("a", "1", AckPolicy.QUORUM), "primary and one backup are a majority");
+        assertFalse(primary.handleClientPut("b", "2", AckPolicy.ALL), "replica3 never acked");
+        // Marked failed by now; it still counts towards the group.
+        assertFalse(primary.handleClientPut("c", "3", AckPolicy.ALL));
+        assertTrue(primary.handleClientPut("d", "4", AckPolicy.QUORUM));
+
+        // Applied wherever it got to, even when the PUT reported false.
+        assertEquals("3", backup.getState().get("c"));
+    }
+
+    @Test
+    void majorityDown() throws Exception {
+        ReplicaImpl primary = start("1", true,
+                List.of(TestReplicas.down("replica2"), TestReplicas.down("replica3")));
+
+        assertFalse(primary.handleClientPut("a", "1", AckPolicy.QUORUM));
+        // Both are out of the backup list now; a quorum still needs one of them.
+        assertFalse(primary.handleClientPut("b", "2", AckPolicy.QUORUM));
+        assertFalse(primary.handleClientPut("c", "3", AckPolicy.ALL));
+        assertTrue(primary.handleClientPut("d", "4", AckPolicy.ASYNC));
+    }
+
+    @Test
+    void noBackups() throws Exception {
+        ReplicaImpl primary = start("1", true, List.of());
+
+        assertTrue(primary.handleClientPut("a", "1", AckPolicy.ALL));
+        assertTrue(primary.handleClientPut("b", "2", AckPolicy.QUORUM));
+    }
+
+    private ReplicaImpl start(String id, boolean primary, List<ReplicaControl> backups) throws IOException {
+        ReplicaImpl replica = new ReplicaImpl(id, primary, backups, TestReplicas.config());
+        replicas.add(replica);
+        return replica;
+    }
+}
@@ -0,0 +1,77 @@
+package replica;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A backup too slow for its replication queue misses batches, but stays a
+ * backup and is brought level from the replication log.
+ */
+class ReplicationPipelineTest {
+
+    private final List<ReplicaImpl> replicas = new ArrayList<>();
+
+    @AfterEach
+    void closeReplicas() {
+        TestReplicas.close(replicas.toArray(new ReplicaImpl[0]));
+    }
+
+    @Test
+    void slowBackupRecoversFromDroppedBatches() throws Exception {
+        ReplicaImpl backup = new ReplicaImpl("2", false, List.of(), TestReplicas.config());
+        replicas.add(backup);
+        ReplicaImpl primary = new ReplicaImpl("1", true, List.of(TestReplicas.slow(backup, 50)),
+                TestReplicas.config("replication-window", "1", "replication-queue", "1"));
+        replicas.add(primary);
+
+        // Writers that keep several batches coming while one is on the wire.
+        ExecutorService writers = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> puts = new ArrayList<>();
+        try {
+            for (int w = 0; w < 8; w++) {
+                int writer = w;
+                puts.add(writers.submit(() -> {
+                    boolean allAcked = true;
+                    for (int i = 0; i < 10; i++) {
+                        allAcked &= primary.handleClientPut("w" + writer + "-" + i, "v" + i, AckPolicy.ALL);
+                    }
+                    return allAcked;
+                }));
+            }
+            int writersShortOfAcks = 0;
+            for (Future<Boolean> put : puts) {
+                if (!put.get()) {
+                    writersShortOfAcks++;
+                }
+            }
+            assertTrue(writersShortOfAcks > 0, "some batches were dropped");
+        } finally {
+            writers.shutdownNow();
+        }
+
+        TestReplicas.await("the backup to catch up", 10_000,
+                () -> seq(backup) == seq(primary));
+        assertEquals(primary.getState(), backup.getState());
+        // Still a backup: ALL needs its ack, and a failed backup would give none.
+        assertTrue(primary.handleClientPut("after", "1", AckPolicy.ALL));
+        assertEquals("1", backup.getState().get("after"));
+    }
+
+    private static long seq(ReplicaImpl replica) {
+        try {
+            return replica.getLastAppliedSeq();
+        } catch (RemoteException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package replica;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A replica that starts from a snapshot, its own or one copied from another
+ * replica, must be caught up from the source's log rather than copied again.
+ */
+class SnapshotCatchUpTest {
+
+    private final List<ReplicaImpl> replicas = new ArrayList<>();
+
+    @AfterEach
+    void closeReplicas() {
+        TestReplicas.close(replicas.toArray(new ReplicaImpl[0]));
+    }
+
+    @Test
+    void seededReplicaCatchesUpFromTheLog(@TempDir Path dir) throws Exception {
+        Path primaryDir = Files.createDirectories(dir.resolve("primary"));
+        ReplicaImpl primary = start("1", true, List.of(),
+                TestReplicas.config("data-dir", primaryDir.toString(), "snapshot-interval-ms", "50"));
+        putAll(primary, 0, 10);
+
+        Path snapshot = primaryDir.resolve("replica1.snapshot");
+        awaitSnapshotAt(snapshot, 10);
+        Path seed = Files.copy(snapshot, dir.resolve("seed.snapshot"));
+        assertNotNull(SnapshotFile.read(seed, (k, v) -> { }).last, "snapshot records its last mutation");
+
+        putAll(primary, 10, 15);
+        ReplicaImpl seeded = start("2", false, List.of(), TestReplicas.config("seed-snapshot", seed.toString()));
+        assertEquals(10, seeded.getLastAppliedSeq());
+
+        TestReplicas.Counting source = new TestReplicas.Counting(primary);
+        seeded.syncFrom(source.stub);
+
+        assertEquals(0, source.calls("readEncodedStateChunk"), "no pages copied");
+        assertEquals(15, seeded.getLastAppliedSeq());
+        assertEquals(primary.getState(), seeded.getState());
+    }
+
+    @Test
+    void restartedReplicaCatchesUpFromTheLog(@TempDir Path dir) throws Exception {
+        Path backupDir = Files.createDirectories(dir.resolve("backup"));
+        ReplicaImpl backup = start("2", false, List.of(),
+                TestReplicas.config("data-dir", backupDir.toString(), "snapshot-interval-ms", "50"));
+        ReplicaImpl primary = start("1", true, List.of(backup), TestReplicas.config());
+        putAll(primary, 0, 10);
+        assertEquals(10, backup.getLastAppliedSeq());
+
+        // Restart from a copy of the data dir once a snapshot covers every write,
+        // so nothing is replayed from the WAL on top of it.
+        awaitSnapshotAt(backupDir.resolve("replica2.snapshot"), 10);
+        Path copy = Files.createDirectories(dir.resolve("restarted"));
+        try (Stream<Path> files = Files.list(backupDir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.copy(f, copy.resolve(f.getFileName()));
+            }
+        }
+
+        putAll(primary, 10, 15);
+        ReplicaImpl restarted = start("2", false, List.of(), TestReplicas.config("data-dir", copy.toString()));
+        assertEquals(10, restarted.getLastAppliedSeq());
+
+        TestReplicas.Counting source = new TestReplicas.Counting(primary);
+        restarted.syncFrom(source.stub);
+
+        assertEquals(0, source.calls("readEncodedStateChunk"), "no pages copied");
+        assertEquals(15, restarted.getLastAppliedSeq());
+        assertEquals(primary.getState(), restarted.getState());
+    }
+
+    @Test
+    void divergedReplicaIsCopiedInFull(@TempDir Path dir) throws Exception {
+        Path primaryDir = Files.createDirectories(dir.resolve("primary"));
+        ReplicaImpl primary = start("1", true, List.of(),
+                TestReplicas.config("data-dir", primaryDir.toString(), "snapshot-interval-ms", "50"));
+        putAll(primary, 0, 10);
+        awaitSnapshotAt(primaryDir.resolve("replica1.snapshot"), 10);
+        Path seed = Files.copy(primaryDir.resolve("replica1.snapshot"), dir.resolve("seed.snapshot"));
+
+        // Another primary with the same seq but a different write at it.
+        ReplicaImpl other = start("3", true, List.of(), TestReplicas.config());
+        putAll(other, 0, 9);
+        assertTrue(other.handleClientPut("k9", "something else"));
+
+        ReplicaImpl seeded = start("2", false, List.of(), TestReplicas.config("seed-snapshot", seed.toString()));
+        TestReplicas.Counting source = new TestReplicas.Counting(other);
+        seeded.syncFrom(source.stub);
+
+        assertTrue(source.calls("readEncodedStateChunk") > 0, "pages copied");
+        assertEquals(other.getState(), seeded.getState());
+    }
+
+    private ReplicaImpl start(String id, boolean primary, List<ReplicaControl> backups, ReplicaConfig config)
+            throws IOException {
+        ReplicaImpl replica = new ReplicaImpl(id, primary, backups, config);
+        replicas.add(replica);
+        return replica;
+    }
+
+    private static void putAll(ReplicaImpl primary, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            assertTrue(primary.handleClientPut("k" + i, "v" + i));
+        }
+    }
+
+    private static void awaitSnapshotAt(Path file, long seq) throws InterruptedException {
+        TestReplicas.await("a snapshot at seq " + seq, 10_000, () -> {
+            try {
+                return Files.exists(file) && SnapshotFile.read(file, (k, v) -> { }).seq == seq;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+}
@@ -0,0 +1,62 @@
+package replica;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A state transfer whose caller goes away stops at the next page, and the
+ * next syncFrom from the same source carries on from there.
+ */
+class StateTransferTest {
+
+    // more than the primary's log holds, so the joining replica needs a full
+    // copy; pages are 4096 entries, so this takes 26 of them
+    private static final int KEYS = 25 * 4096 + 100;
+
+    private final List<ReplicaImpl> replicas = new ArrayList<>();
+
+    @AfterEach
+    void closeReplicas() {
+        TestReplicas.close(replicas.toArray(new ReplicaImpl[0]));
+    }
+
+    @Test
+    void cancelledTransferResumes() throws Exception {
+        ReplicaImpl primary = start("1", true);
+        Map<String,String> entries = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            entries.put(String.format("k%06d", i), "v" + i);
+        }
+        assertTrue(primary.handleClientBatchPut(entries, null));
+
+        ReplicaImpl joining = start("2", false);
+        TestReplicas.Counting source = new TestReplicas.Counting(primary);
+        RemoteException e = assertThrows(RemoteException.class,
+                () -> joining.syncFrom(source.stub, () -> source.calls("readEncodedStateChunk") >= 2));
+        assertTrue(e.getMessage().contains("call syncFrom again to resume"), e.getMessage());
+        assertEquals(2, source.calls("readEncodedStateChunk"), "stopped before the third page");
+
+        joining.syncFrom(source.stub);
+
+        assertEquals(26, source.calls("readEncodedStateChunk"), "no page copied twice");
+        assertEquals(primary.getState(), joining.getState());
+        assertEquals(primary.getLastAppliedSeq(), joining.getLastAppliedSeq());
+    }
+
+    private ReplicaImpl start(String id, boolean primary) throws IOException {
+        ReplicaImpl replica = new ReplicaImpl(id, primary, List.of(), TestReplicas.config());
+        replicas.add(replica);
+        return replica;
+    }
+}
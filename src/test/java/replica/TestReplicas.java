@@ -0,0 +1,149 @@
+package replica;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Helpers for tests that run several replicas in one JVM. The replicas call
+ * each other directly (or through the stubs below) rather than through the
+ * registry, which these tests do not start.
+ */
+final class TestReplicas {
+
+    private TestReplicas() {
+    }
+
+    /**
+     * Replica options as given on the command line, without the leading
+     * dashes: key, value, key, value... Membership refreshes and anti-entropy
+     * are turned off unless given, so only the test drives the replicas.
+     */
+    static ReplicaConfig config(String... keysAndValues) {
+        Map<String,String> options = new HashMap<>();
+        options.put("membership-refresh-ms", "600000");
+        options.put("anti-entropy-interval-ms", "0");
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            options.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return ReplicaConfig.fromOptions(options);
+    }
+
+    static void close(ReplicaImpl... replicas) {
+        for (ReplicaImpl replica : replicas) {
+            if (replica == null) {
+                continue;
+            }
+            try {
+                UnicastRemoteObject.unexportObject(replica, true);
+            } catch (NoSuchObjectException e) {
+                // not exported any more
+            }
+        }
+    }
+
+    static void await(String what, long timeoutMillis, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("timed out waiting for " + what);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * A stub to a replica that is down: every call fails as if it were unreachable.
+     */
+    static ReplicaControl down(String name) {
+        return (ReplicaControl) Proxy.newProxyInstance(ReplicaControl.class.getClassLoader(),
+                new Class<?>[] {ReplicaControl.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return name + " (down)";
+                        default:
+                            throw new RemoteException(name + " is down");
+                    }
+                });
+    }
+
+    /**
+     * A stub to a replica that takes delayMillis longer to apply each batch of
+     * deltas, like a backup on a slow link.
+     */
+    static ReplicaControl slow(ReplicaControl target, long delayMillis) {
+        return (ReplicaControl) Proxy.newProxyInstance(ReplicaControl.class.getClassLoader(),
+                new Class<?>[] {ReplicaControl.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "slow stub to " + target;
+                        case "applyEncodedDeltas":
+                            Thread.sleep(delayMillis);
+                            break;
+                        default:
+                            break;
+                    }
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * A stub to a replica that counts the calls made through it, by method name.
+     */
+    static final class Counting implements InvocationHandler {
+        private final ReplicaControl target;
+        private final Map<String,AtomicInteger> calls = new ConcurrentHashMap<>();
+        final ReplicaControl stub;
+
+        Counting(ReplicaControl target) {
+            this.target = target;
+            this.stub = (ReplicaControl) Proxy.newProxyInstance(ReplicaControl.class.getClassLoader(),
+                    new Class<?>[] {ReplicaControl.class}, this);
+        }
+
+        int calls(String method) {
+            AtomicInteger n = calls.get(method);
+            return (n == null) ? 0 : n.get();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "counting stub to " + target;
+                default:
+                    calls.computeIfAbsent(method.getName(), k -> new AtomicInteger()).incrementAndGet();
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}